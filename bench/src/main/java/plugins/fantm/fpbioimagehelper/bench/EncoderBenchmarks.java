@@ -0,0 +1,77 @@
+package plugins.fantm.fpbioimagehelper.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import plugins.fantm.fpbioimagehelper.ArgbConverter;
+import plugins.fantm.fpbioimagehelper.AtlasComposer;
+import plugins.fantm.fpbioimagehelper.AtlasExporter;
+import plugins.fantm.fpbioimagehelper.AtlasLayout;
+import plugins.fantm.fpbioimagehelper.JpegEncoder;
+import plugins.fantm.fpbioimagehelper.PngEncoder;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncoderBenchmarks {
+
+	// Encoding the first atlas of a synthetic stack, across PNG filters and levels
+
+	@Param({"256x256x64"})
+	public String size;
+
+	// Only the PNG benchmark is run for each filter and level
+	@State(Scope.Benchmark)
+	public static class Png {
+		@Param({"NONE", "PAETH", "ADAPTIVE"})
+		public String filter;
+
+		@Param({"1", "6"})
+		public int level;
+	}
+
+	private BufferedImage atlas;
+	private SyntheticData.CountingStream out;
+
+	@Setup
+	public void setup(){
+		int[] dims = SyntheticData.parseSize(size);
+		Sequence seq = SyntheticData.createSequence(dims[0], dims[1], dims[2], 2, DataType.UBYTE, 42);
+		Sequence argbStack = SyntheticData.argbStack(seq, seq.createCompatibleLUT());
+		ArgbConverter converter = new ArgbConverter(AtlasExporter.createAtlasLUT(argbStack, false));
+		AtlasLayout layout = new AtlasLayout(argbStack.getSizeX(), argbStack.getSizeY(), argbStack.getSizeZ());
+		atlas = AtlasComposer.compose(argbStack, 0, layout, converter)[0];
+		out = new SyntheticData.CountingStream();
+	}
+
+	@Benchmark
+	public long png(Png png) throws IOException {
+		new PngEncoder(png.level, PngEncoder.Filter.valueOf(png.filter)).write(atlas, out);
+		return out.count;
+	}
+
+	@Benchmark
+	public long jpeg() throws IOException {
+		new JpegEncoder(0.85f).write(atlas, out);
+		return out.count;
+	}
+
+}
@@ -0,0 +1,167 @@
+package plugins.fantm.fpbioimagehelper.bench;
+
+import java.lang.reflect.Array;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import icy.image.lut.LUT;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import plugins.fantm.fpbioimagehelper.ArgbConverter;
+import plugins.fantm.fpbioimagehelper.AtlasComposer;
+import plugins.fantm.fpbioimagehelper.AtlasExporter;
+import plugins.fantm.fpbioimagehelper.AtlasLayout;
+import plugins.fantm.fpbioimagehelper.FusedArgbKernel;
+import plugins.fantm.fpbioimagehelper.VectorKernels;
+import plugins.fantm.fpbioimagehelper.ZScaler;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExportBenchmarks {
+
+	// The per-frame hot paths of an export, on a seeded synthetic sequence:
+	// z-scaling, the 8/16-bit kernels against the plain loops, ARGB conversion,
+	// the fused render pass and atlas composition.
+
+	@Param({"256x256x64"})
+	public String size;
+
+	@Param({"2"})
+	public int channels;
+
+	@Param({"UBYTE", "USHORT"})
+	public String type;
+
+	private Sequence seq;
+	private LUT viewerLut;
+	private Sequence argbStack;
+	private ArgbConverter converter;
+	private AtlasLayout layout;
+	private FusedArgbKernel kernel;
+
+	// Two slices of channel 0, and outputs for the plain and vector paths
+	private Object sliceA; private Object sliceB;
+	private Object plainOut; private Object vectorOut;
+	private boolean signed;
+
+	// Random pixels to blend, and the buffer they are blended into
+	private int[] blendSrc; private int[] blendStart; private int[] blendDst;
+	// Null unless the forks run with the jdk.incubator.vector module
+	private final VectorKernels kernels = VectorKernels.get();
+
+	private int[] slice; private int[] cell;
+	private int halfWidth; private int halfHeight;
+
+	@Setup
+	public void setup(){
+		int[] dims = SyntheticData.parseSize(size);
+		seq = SyntheticData.createSequence(dims[0], dims[1], dims[2], channels, DataType.valueOf(type), 42);
+		viewerLut = seq.createCompatibleLUT();
+		argbStack = SyntheticData.argbStack(seq, viewerLut);
+		converter = new ArgbConverter(AtlasExporter.createAtlasLUT(argbStack, false));
+		layout = new AtlasLayout(argbStack.getSizeX(), argbStack.getSizeY(), argbStack.getSizeZ());
+		kernel = new FusedArgbKernel(viewerLut, converter);
+
+		signed = seq.isSignedDataType();
+		sliceA = seq.getDataXY(0, 0, 0);
+		sliceB = seq.getDataXY(0, Math.min(1, dims[2] - 1), 0);
+		plainOut = Array.newInstance(sliceA.getClass().getComponentType(), Array.getLength(sliceA));
+		vectorOut = Array.newInstance(sliceA.getClass().getComponentType(), Array.getLength(sliceA));
+
+		Random random = new Random(7);
+		blendSrc = new int[dims[0] * dims[1]];
+		blendStart = new int[blendSrc.length];
+		for (int i=0; i<blendSrc.length; i++){
+			blendSrc[i] = random.nextInt(); blendStart[i] = random.nextInt();
+		}
+		blendDst = new int[blendSrc.length];
+
+		slice = new int[dims[0] * dims[1]];
+		halfWidth = dims[0] / 2; halfHeight = dims[1] / 2;
+		cell = new int[halfWidth * halfHeight];
+	}
+
+	@Benchmark
+	public Sequence scaleZHalf(){
+		return ZScaler.scaleZ(seq, 0.5);
+	}
+
+	@Benchmark
+	public Sequence scaleZUneven(){
+		return ZScaler.scaleZ(seq, 0.37);
+	}
+
+	@Benchmark
+	public Object interpolatePlain(){
+		ZScaler.interpolate(sliceA, sliceB, plainOut, 0.37, signed, false);
+		return plainOut;
+	}
+
+	@Benchmark
+	public Object interpolateVector(){
+		ZScaler.interpolate(sliceA, sliceB, vectorOut, 0.37, signed, true);
+		return vectorOut;
+	}
+
+	@Benchmark
+	public int[] blendPlain(){
+		System.arraycopy(blendStart, 0, blendDst, 0, blendStart.length);
+		VectorKernels.blendScalar(blendDst, 0, blendSrc, 0, blendSrc.length);
+		return blendDst;
+	}
+
+	@Benchmark
+	public int[] blendVector(){
+		if (kernels == null) throw new IllegalStateException("No vector kernels: run with -jvmArgsAppend --add-modules=jdk.incubator.vector");
+		System.arraycopy(blendStart, 0, blendDst, 0, blendStart.length);
+		kernels.blend(blendDst, 0, blendSrc, 0, blendSrc.length);
+		return blendDst;
+	}
+
+	@Benchmark
+	public int[] convertSourceSlice(){
+		new ArgbConverter(viewerLut).convert(seq.getImage(0, 0), slice, 0, seq.getSizeX());
+		return slice;
+	}
+
+	@Benchmark
+	public int[] convertArgbSlice(){
+		converter.convert(argbStack.getImage(0, 0), slice, 0, seq.getSizeX());
+		return slice;
+	}
+
+	// A half size slice through the separate passes, then through the fused kernel
+	@Benchmark
+	public int[] separatePassesHalfSlice(){
+		converter.convert(AtlasExporter.prepareSlice(seq, 0, 0, viewerLut, halfWidth, halfHeight), cell, 0, halfWidth);
+		return cell;
+	}
+
+	@Benchmark
+	public int[] fusedKernelHalfSlice(){
+		kernel.render(seq.getImage(0, 0), halfWidth, halfHeight, cell, 0, halfWidth);
+		return cell;
+	}
+
+	@Benchmark
+	public Object compose(){
+		return AtlasComposer.compose(argbStack, 0, layout, converter);
+	}
+
+}
@@ -0,0 +1,70 @@
+package plugins.fantm.fpbioimagehelper.bench;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import plugins.fantm.fpbioimagehelper.AtlasLayout;
+import plugins.fantm.fpbioimagehelper.WebpageTemplate;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LayoutBenchmarks {
+
+	// Atlas layout arithmetic and webpage rendering, which need no image data
+
+	private Map<String, String> values;
+
+	@Setup
+	public void setup(){
+		values = SyntheticData.templateValues(new AtlasLayout(256, 256, 64));
+	}
+
+	@Benchmark
+	public int ceil2(){
+		int sum = 0;
+		for (int x=1; x<=4096; x++) sum += AtlasLayout.ceil2(x);
+		return sum;
+	}
+
+	@Benchmark
+	public long layoutCubes(){
+		long sum = 0;
+		for (int n=1; n<=500; n++){
+			AtlasLayout layout = new AtlasLayout(n, n, n);
+			sum += layout.atlasWidth + layout.atlasHeight + layout.slicesPerAtlas;
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public long tightLayoutCubes(){
+		long sum = 0;
+		for (int n=1; n<=500; n++){
+			AtlasLayout layout = AtlasLayout.tight(n, n, n, AtlasLayout.DEFAULT_NUMBER_OF_ATLASES, 8192);
+			sum += layout.atlasWidth + layout.atlasHeight + layout.slicesPerAtlas;
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public String renderTemplate() throws IOException {
+		return WebpageTemplate.getDefault().render(values);
+	}
+
+}
@@ -0,0 +1,117 @@
+package plugins.fantm.fpbioimagehelper.bench;
+
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import icy.image.IcyBufferedImage;
+import icy.image.lut.LUT;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import plugins.fantm.fpbioimagehelper.AtlasExporter;
+import plugins.fantm.fpbioimagehelper.AtlasLayout;
+
+public class SyntheticData {
+
+	// Seeded synthetic inputs for the benchmarks, so runs with the same parameters
+	// measure the same work.
+
+	// A z-stack of pseudo-random smooth-ish data, the same for the same seed
+	public static Sequence createSequence(int sizeX, int sizeY, int sizeZ, int sizeC, DataType type, long seed){
+		Random random = new Random(seed);
+		Sequence seq = new Sequence("Benchmark");
+		seq.beginUpdate();
+		try {
+			for (int z=0; z<sizeZ; z++){
+				IcyBufferedImage image = new IcyBufferedImage(sizeX, sizeY, sizeC, type);
+				for (int c=0; c<sizeC; c++){
+					fill(image.getDataXY(c), sizeX, z, c, random);
+				}
+				image.dataChanged();
+				seq.addImage(image);
+			}
+		} finally {
+			seq.endUpdate();
+		}
+		return seq;
+	}
+
+	// "256x256x64" as {256, 256, 64}
+	public static int[] parseSize(String size){
+		String[] dims = size.split("x");
+		return new int[] {Integer.parseInt(dims[0]), Integer.parseInt(dims[1]), Integer.parseInt(dims[2])};
+	}
+
+	// Blobs over a noise floor, in 0..255 whatever the type
+	private static void fill(Object data, int width, int z, int c, Random random){
+		int length = Array.getLength(data);
+		for (int i=0; i<length; i++){
+			int x = i % width; int y = i / width;
+			double blob = 127.5 * (1 + Math.sin((x + 7 * c) * 0.05) * Math.cos((y + z) * 0.07));
+			int value = Math.min(255, (int) blob + random.nextInt(16));
+			if (data instanceof byte[]) ((byte[]) data)[i] = (byte) value;
+			else if (data instanceof short[]) ((short[]) data)[i] = (short) (value * 257);
+			else if (data instanceof int[]) ((int[]) data)[i] = value * 65793;
+			else if (data instanceof float[]) ((float[]) data)[i] = value / 255f;
+			else if (data instanceof double[]) ((double[]) data)[i] = value / 255.0;
+		}
+	}
+
+	// The ARGB stack the plugin renders frame 0 of seq to
+	public static Sequence argbStack(Sequence seq, LUT viewerLut){
+		Sequence stack = new Sequence();
+		stack.beginUpdate();
+		try {
+			for (int z=0; z<seq.getSizeZ(); z++){
+				stack.addImage(AtlasExporter.prepareSlice(seq, 0, z, viewerLut, seq.getSizeX(), seq.getSizeY()));
+			}
+		} finally {
+			stack.endUpdate();
+		}
+		return stack;
+	}
+
+	public static Map<String, String> templateValues(AtlasLayout layout){
+		Map<String, String> values = new HashMap<String, String>();
+		values.put("templateTitle", "Benchmark - FPBioimage Viewer");
+		values.put("templateImagePath", ".");
+		values.put("templateTimePoints", "");
+		values.put("templateUniqueName", "Benchmark");
+		values.put("templateNumberOfImages", Integer.toString(layout.numberOfImages));
+		values.put("templateImagePrefix", "Benchmark_z");
+		values.put("templateNumberingFormat", "0000");
+		values.put("templateVoxelX", "1.0");
+		values.put("templateVoxelY", "1.0");
+		values.put("templateVoxelZ", "1.0");
+		values.put("templateCropX", "0");
+		values.put("templateCropY", "0");
+		values.put("templateCropZ", "0");
+		values.put("templateSliceWidth", Integer.toString(layout.sliceWidth));
+		values.put("templateSliceHeight", Integer.toString(layout.sliceHeight));
+		values.put("templateAtlasLayout", layout.toJavaScript());
+		values.put("templateLevels", "");
+		values.put("templateBrickManifest", "");
+		values.put("templateAtlasFormat", "argb");
+		values.put("templateFileType", "png");
+		values.put("templateImageAlpha", "true");
+		return values;
+	}
+
+	// Discards the encoded bytes, keeping only their count
+	public static class CountingStream extends OutputStream {
+		public long count;
+
+		@Override
+		public void write(int b){
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len){
+			count += len;
+		}
+	}
+
+}
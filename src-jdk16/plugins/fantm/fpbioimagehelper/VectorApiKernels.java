@@ -0,0 +1,117 @@
+package plugins.fantm.fpbioimagehelper;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+class VectorApiKernels extends VectorKernels {
+
+	// VectorKernels with the Vector API, loaded by VectorKernels.get() (see there).
+	// Interpolation reads 8 values at a time and works on them in doubles, in as many
+	// parts as the widest double vector needs, with the plain loop's separate multiply and
+	// add (never fused), so every lane is exactly what the plain loop computes. Math.round
+	// is done as a truncation plus a correction for the lanes past a half.
+
+	// Values read and written per step
+	private static final int STEP = 8;
+	private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_64;
+	private static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_128;
+
+	// Up to STEP lanes of doubles, and ints with the same number of lanes
+	private static final VectorSpecies<Double> DOUBLES = VectorSpecies.of(double.class,
+			VectorShape.forBitSize(64 * Math.min(STEP, DoubleVector.SPECIES_PREFERRED.length())));
+	private static final VectorSpecies<Integer> INTS = VectorSpecies.of(int.class, VectorShape.forBitSize(32 * DOUBLES.length()));
+	private static final int PARTS = STEP / DOUBLES.length();
+
+	private static final VectorSpecies<Integer> PIXELS = IntVector.SPECIES_PREFERRED;
+
+	@Override
+	public void interpolate(byte[] a, byte[] b, byte[] out, double frac, boolean signed){
+		int mask = signed ? 0xFFFFFFFF : 0xFF;
+		int i = 0;
+		for (; i<=out.length-STEP; i+=STEP){
+			ByteVector va = ByteVector.fromArray(BYTES, a, i);
+			ByteVector vb = ByteVector.fromArray(BYTES, b, i);
+			ByteVector result = ByteVector.zero(BYTES);
+			for (int part=0; part<PARTS; part++){
+				IntVector rounded = interpolate(((IntVector) va.castShape(INTS, part)).and(mask), ((IntVector) vb.castShape(INTS, part)).and(mask), frac);
+				result = result.or((ByteVector) rounded.castShape(BYTES, -part));
+			}
+			result.intoArray(out, i);
+		}
+		for (; i<out.length; i++){
+			int va = a[i] & mask; int vb = b[i] & mask;
+			out[i] = (byte) Math.round(va + frac * (vb - va));
+		}
+	}
+
+	@Override
+	public void interpolate(short[] a, short[] b, short[] out, double frac, boolean signed){
+		int mask = signed ? 0xFFFFFFFF : 0xFFFF;
+		int i = 0;
+		for (; i<=out.length-STEP; i+=STEP){
+			ShortVector va = ShortVector.fromArray(SHORTS, a, i);
+			ShortVector vb = ShortVector.fromArray(SHORTS, b, i);
+			ShortVector result = ShortVector.zero(SHORTS);
+			for (int part=0; part<PARTS; part++){
+				IntVector rounded = interpolate(((IntVector) va.castShape(INTS, part)).and(mask), ((IntVector) vb.castShape(INTS, part)).and(mask), frac);
+				result = result.or((ShortVector) rounded.castShape(SHORTS, -part));
+			}
+			result.intoArray(out, i);
+		}
+		for (; i<out.length; i++){
+			int va = a[i] & mask; int vb = b[i] & mask;
+			out[i] = (short) Math.round(va + frac * (vb - va));
+		}
+	}
+
+	// Math.round(a + frac * (b - a)), lane by lane
+	private static IntVector interpolate(IntVector a, IntVector b, double frac){
+		DoubleVector da = (DoubleVector) a.castShape(DOUBLES, 0);
+		DoubleVector difference = (DoubleVector) b.sub(a).castShape(DOUBLES, 0);
+		DoubleVector x = da.add(difference.mul(frac));
+
+		// Truncated towards zero. The remainder is exact: x and its truncation are within a
+		// factor of 2 of each other, or the truncation is 0.
+		IntVector truncated = (IntVector) x.castShape(INTS, 0);
+		DoubleVector remainder = x.sub((DoubleVector) truncated.castShape(DOUBLES, 0));
+		// Ties go up: 2.5 to 3, -2.5 to -2
+		VectorMask<Integer> up = remainder.compare(VectorOperators.GE, 0.5).cast(INTS);
+		VectorMask<Integer> down = remainder.compare(VectorOperators.LT, -0.5).cast(INTS);
+		return truncated.add(1, up).sub(1, down);
+	}
+
+	// Saturating add of the colour bytes, max of the alphas
+	@Override
+	public void blend(int[] dst, int dstOffset, int[] src, int srcOffset, int length){
+		int i = 0;
+		for (; i<=length-PIXELS.length(); i+=PIXELS.length()){
+			IntVector d = IntVector.fromArray(PIXELS, dst, dstOffset + i);
+			IntVector s = IntVector.fromArray(PIXELS, src, srcOffset + i);
+			IntVector alpha = d.lanewise(VectorOperators.LSHR, 24).max(s.lanewise(VectorOperators.LSHR, 24));
+			IntVector red = channel(d, s, 16);
+			IntVector green = channel(d, s, 8);
+			IntVector blue = channel(d, s, 0);
+			alpha.lanewise(VectorOperators.LSHL, 24)
+				.or(red.lanewise(VectorOperators.LSHL, 16))
+				.or(green.lanewise(VectorOperators.LSHL, 8))
+				.or(blue)
+				.intoArray(dst, dstOffset + i);
+		}
+		for (; i<length; i++){
+			dst[dstOffset + i] = ArgbConverter.blend(dst[dstOffset + i], src[srcOffset + i]);
+		}
+	}
+
+	private static IntVector channel(IntVector d, IntVector s, int shift){
+		IntVector x = d.lanewise(VectorOperators.LSHR, shift).and(0xFF);
+		IntVector y = s.lanewise(VectorOperators.LSHR, shift).and(0xFF);
+		return x.add(y).min(0xFF);
+	}
+
+}
@@ -0,0 +1,138 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.util.Arrays;
+
+import icy.image.IcyBufferedImage;
+import icy.image.colormap.IcyColorMap;
+import icy.image.lut.LUT;
+import icy.math.Scaler;
+
+public class ArgbConverter {
+
+	// Renders IcyBufferedImages through a LUT straight into packed ARGB int buffers
+	// (e.g. a region of an atlas' DataBufferInt), so no intermediate BufferedImage is needed.
+	// Each channel is scaled to a colormap index; channel colours are added together
+	// (saturating) and the pixel takes the strongest channel alpha. 8 and 16-bit data go
+	// through tables compiled from the scalers the first time they are needed; with
+	// VectorKernels, a row's colours are looked up first, then blended in one pass.
+
+	private final Scaler[] scalers;
+	private final int[][] colormaps; // packed ARGB per channel, IcyColorMap.SIZE entries each
+	private final int[][][] tables; // per channel: 8-bit, signed 8-bit, 16-bit, signed 16-bit
+
+	public ArgbConverter(LUT lut){
+		scalers = lut.getScalers();
+		colormaps = new int[scalers.length][];
+		for (int c=0; c<scalers.length; c++){
+			IcyColorMap colormap = lut.getLutChannel(c).getColorMap();
+			colormaps[c] = new int[IcyColorMap.SIZE];
+			for (int i=0; i<IcyColorMap.SIZE; i++){
+				colormaps[c][i] = pack(colormap.getNormalizedAlpha(i), colormap.getNormalizedRed(i), colormap.getNormalizedGreen(i), colormap.getNormalizedBlue(i));
+			}
+		}
+		tables = new int[scalers.length][4][];
+	}
+
+	public int getNumChannels(){
+		return scalers.length;
+	}
+
+	// The colour channel c gives each value of the given bits, indexed by those bits
+	synchronized int[] table(int c, int bits, boolean signed){
+		int key = (bits == 16 ? 2 : 0) + (signed ? 1 : 0);
+		if (tables[c][key] == null){
+			tables[c][key] = LutCompiler.argbTable(scalers[c], colormaps[c], bits, signed);
+		}
+		return tables[c][key];
+	}
+
+	// Writes the whole image into dst, starting at dstOffset, with dstStride ints per row
+	public void convert(IcyBufferedImage image, int[] dst, int dstOffset, int dstStride){
+		int width = image.getSizeX(); int height = image.getSizeY();
+		boolean signed = image.getDataType_().isSigned();
+		int numChannels = Math.min(image.getSizeC(), scalers.length);
+
+		for (int y=0; y<height; y++){
+			Arrays.fill(dst, dstOffset + y*dstStride, dstOffset + y*dstStride + width, 0);
+		}
+
+		VectorKernels kernels = VectorKernels.get();
+		int[] row = kernels != null ? new int[width] : null;
+		for (int c=0; c<numChannels; c++){
+			Object data = image.getDataXY(c);
+			int[] table = data instanceof byte[] ? table(c, 8, signed) : data instanceof short[] ? table(c, 16, signed) : null;
+			for (int y=0; y<height; y++){
+				blendRow(c, data, table, y*width, dst, dstOffset + y*dstStride, width, signed, kernels, row);
+			}
+		}
+	}
+
+	// row, if kernels isn't null, is a buffer of width ints for kernels.blend
+	private void blendRow(int c, Object data, int[] table, int srcOffset, int[] dst, int dstOffset, int width, boolean signed, VectorKernels kernels, int[] row){
+		Scaler scaler = scalers[c];
+		int[] colormap = colormaps[c];
+
+		if (data instanceof byte[]){
+			byte[] src = (byte[]) data;
+			if (kernels != null){
+				for (int x=0; x<width; x++){
+					row[x] = table[src[srcOffset + x] & 0xFF];
+				}
+				kernels.blend(dst, dstOffset, row, 0, width);
+				return;
+			}
+			for (int x=0; x<width; x++){
+				int o = dstOffset + x;
+				dst[o] = blend(dst[o], table[src[srcOffset + x] & 0xFF]);
+			}
+		} else if (data instanceof short[]){
+			short[] src = (short[]) data;
+			if (kernels != null){
+				for (int x=0; x<width; x++){
+					row[x] = table[src[srcOffset + x] & 0xFFFF];
+				}
+				kernels.blend(dst, dstOffset, row, 0, width);
+				return;
+			}
+			for (int x=0; x<width; x++){
+				int o = dstOffset + x;
+				dst[o] = blend(dst[o], table[src[srcOffset + x] & 0xFFFF]);
+			}
+		} else if (data instanceof int[]){
+			int[] src = (int[]) data;
+			long mask = signed ? 0xFFFFFFFFFFFFFFFFL : 0xFFFFFFFFL;
+			for (int x=0; x<width; x++){
+				int o = dstOffset + x;
+				dst[o] = blend(dst[o], colormap[LutCompiler.index(scaler.scale(src[srcOffset + x] & mask))]);
+			}
+		} else if (data instanceof float[]){
+			float[] src = (float[]) data;
+			for (int x=0; x<width; x++){
+				int o = dstOffset + x;
+				dst[o] = blend(dst[o], colormap[LutCompiler.index(scaler.scale(src[srcOffset + x]))]);
+			}
+		} else if (data instanceof double[]){
+			double[] src = (double[]) data;
+			for (int x=0; x<width; x++){
+				int o = dstOffset + x;
+				dst[o] = blend(dst[o], colormap[LutCompiler.index(scaler.scale(src[srcOffset + x]))]);
+			}
+		} else {
+			throw new IllegalArgumentException("Unsupported data type for ARGB conversion: " + data.getClass().getSimpleName());
+		}
+	}
+
+	static int pack(float a, float r, float g, float b){
+		return (Math.round(a * 255) << 24) | (Math.round(r * 255) << 16) | (Math.round(g * 255) << 8) | Math.round(b * 255);
+	}
+
+	// Saturating add of the colours, max of the alphas
+	static int blend(int dst, int src){
+		int a = Math.max(dst >>> 24, src >>> 24);
+		int r = Math.min(((dst >> 16) & 0xFF) + ((src >> 16) & 0xFF), 0xFF);
+		int g = Math.min(((dst >> 8) & 0xFF) + ((src >> 8) & 0xFF), 0xFF);
+		int b = Math.min((dst & 0xFF) + (src & 0xFF), 0xFF);
+		return (a << 24) | (r << 16) | (g << 8) | b;
+	}
+
+}
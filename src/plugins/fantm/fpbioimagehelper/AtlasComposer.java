@@ -0,0 +1,61 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.util.stream.IntStream;
+
+import icy.sequence.Sequence;
+
+public class AtlasComposer {
+
+	// Pixel format of the atlases. PALETTE and GRAY hold one byte per pixel and are only
+	// used for single-channel data: PALETTE looks the same as ARGB, GRAY leaves the colour
+	// (and alpha, from the grey level) to the viewer. AUTO picks PALETTE where it can.
+	public enum Format {
+		AUTO, ARGB, PALETTE, GRAY
+	}
+
+	// Composes the texture atlases for frame t of a stack. Slices land in disjoint
+	// regions of the atlases, so each slice is its own fork-join task and is rendered
+	// straight into the atlas' int buffer.
+	public static BufferedImage[] compose(Sequence stack, int t, AtlasLayout layout, ArgbConverter converter){
+		return compose(stack, t, layout, converter, new ExportReport());
+	}
+
+	// Stops before the next slice once report is cancelled
+	public static BufferedImage[] compose(final Sequence stack, final int t, final AtlasLayout layout, final ArgbConverter converter, final ExportReport report){
+		final BufferedImage[] atlasArray = createAtlases(layout);
+		final int[][] atlasData = new int[layout.numberOfAtlases][];
+		for (int i=0; i<layout.numberOfAtlases; i++){
+			atlasData[i] = ((DataBufferInt) atlasArray[i].getRaster().getDataBuffer()).getData();
+		}
+
+		IntStream.range(0, layout.numberOfImages).parallel().forEach(i -> {
+			report.checkCancelled();
+			int dstOffset = layout.xStartPixel(i) + layout.yStartPixel(i) * layout.atlasWidth;
+			converter.convert(stack.getImage(t, i), atlasData[layout.atlasNumber(i)], dstOffset, layout.atlasWidth);
+		});
+
+		return atlasArray;
+	}
+
+	public static BufferedImage[] createAtlases(AtlasLayout layout){
+		BufferedImage[] atlasArray = new BufferedImage[layout.numberOfAtlases];
+		for (int i=0; i<layout.numberOfAtlases; i++){
+			atlasArray[i] = new BufferedImage(layout.atlasWidth, layout.atlasHeight, BufferedImage.TYPE_INT_ARGB);
+		}
+		return atlasArray;
+	}
+
+	// One byte per pixel: indexed with palette, or grayscale if palette is null
+	public static BufferedImage[] createAtlases(AtlasLayout layout, IndexColorModel palette){
+		BufferedImage[] atlasArray = new BufferedImage[layout.numberOfAtlases];
+		for (int i=0; i<layout.numberOfAtlases; i++){
+			atlasArray[i] = palette == null ? new BufferedImage(layout.atlasWidth, layout.atlasHeight, BufferedImage.TYPE_BYTE_GRAY)
+					: new BufferedImage(layout.atlasWidth, layout.atlasHeight, BufferedImage.TYPE_BYTE_INDEXED, palette);
+		}
+		return atlasArray;
+	}
+
+}
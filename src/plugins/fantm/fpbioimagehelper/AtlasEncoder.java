@@ -0,0 +1,21 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public interface AtlasEncoder {
+
+	// Writes atlases in one image format. Implementations are registered with AtlasEncoders
+	// under their file type and must be safe to use from several threads at once.
+
+	// File extension, also given to the viewer as fpb.fileType
+	String fileType();
+
+	// Whether the atlas alpha survives encoding; if not, the viewer derives it
+	boolean keepsAlpha();
+
+	// Encodes a TYPE_INT_ARGB, TYPE_BYTE_GRAY or TYPE_BYTE_INDEXED atlas
+	void write(BufferedImage atlas, OutputStream out) throws IOException;
+
+}
@@ -0,0 +1,48 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class AtlasEncoders {
+
+	// The atlas formats an export can write, by file type. PNG and JPEG are built in;
+	// others can be added with register() before exporting.
+
+	public interface Factory {
+		AtlasEncoder create(ExportOptions options);
+	}
+
+	private static final Map<String, Factory> FACTORIES = new LinkedHashMap<String, Factory>();
+	private static final Map<String, String> CONTENT_TYPES = new LinkedHashMap<String, String>();
+
+	static {
+		register("png", "image/png", options -> new PngEncoder(options.pngCompressionLevel, options.pngFilter));
+		register("jpg", "image/jpeg", options -> new JpegEncoder(options.jpegQuality));
+	}
+
+	public static synchronized void register(String fileType, String contentType, Factory factory){
+		FACTORIES.put(fileType, factory);
+		CONTENT_TYPES.put(fileType, contentType);
+	}
+
+	// The encoder for options.fileType
+	public static synchronized AtlasEncoder create(ExportOptions options){
+		Factory factory = FACTORIES.get(options.fileType);
+		if (factory == null){
+			throw new IllegalArgumentException("No atlas encoder for file type " + options.fileType + ". Known types: " + fileTypes());
+		}
+		return factory.create(options);
+	}
+
+	// Null if the file type isn't registered
+	public static synchronized String contentType(String fileType){
+		return CONTENT_TYPES.get(fileType);
+	}
+
+	public static synchronized List<String> fileTypes(){
+		return new ArrayList<String>(FACTORIES.keySet());
+	}
+
+}
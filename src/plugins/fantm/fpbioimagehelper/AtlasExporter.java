@@ -0,0 +1,392 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+import icy.image.IcyBufferedImage;
+import icy.image.IcyBufferedImageUtil;
+import icy.image.lut.LUT;
+import icy.math.Scaler;
+import icy.sequence.Sequence;
+import icy.sequence.SequenceUtil;
+import icy.type.DataType;
+
+public class AtlasExporter {
+
+	// Turns one frame of a sequence into a set of texture atlases.
+
+	public static AtlasSet export(Sequence seq, LUT viewerLut, ExportOptions options){
+		return export(seq, viewerLut, options, null);
+	}
+
+	// converter renders the atlases; pass one from createSharedConverter to reuse the same
+	// LUT and scalers across frames, or null to set them up for this frame alone
+	public static AtlasSet export(Sequence seq, LUT viewerLut, ExportOptions options, ArgbConverter converter){
+		return export(seq, viewerLut, options, converter, new ExportReport());
+	}
+
+	// Each stage is timed into report
+	public static AtlasSet export(Sequence seq, LUT viewerLut, ExportOptions options, ArgbConverter converter, ExportReport report){
+		Volume volume = Volume.of(seq);
+		return export(volume, viewerLut, options, converter, report, BrickGrid.whole(volume, options));
+	}
+
+	// Just the part of the frame in brick, which is always streamed, as is a volume that
+	// can only be read a slice at a time
+	public static AtlasSet export(Volume volume, LUT viewerLut, ExportOptions options, ArgbConverter converter, ExportReport report, BrickGrid.Brick brick){
+		if (options.atlasFormat == AtlasComposer.Format.AUTO){
+			options = resolveFormat(volume, viewerLut, options, report);
+		}
+		if (options.atlasFormat != AtlasComposer.Format.ARGB){
+			return exportIndexed(volume, viewerLut, options, converter, report, brick);
+		}
+		if (!inMemory(options) || !brick.isWhole() || volume.getSequence() == null){
+			return exportStreaming(volume, viewerLut, options, converter, report, brick);
+		}
+		return exportInMemory(volume.getSequence(), viewerLut, options, converter, report);
+	}
+
+	// Only ARGB exports scaled in z (and not streamed) build whole intermediate sequences;
+	// everything else goes a slice at a time
+	private static boolean inMemory(ExportOptions options){
+		return !options.streams() && options.scalesZ() && options.atlasFormat == AtlasComposer.Format.ARGB;
+	}
+
+	// A copy of options with AUTO (or a single-channel format the data can't use) replaced
+	// by the format that will actually be written. Falling back to ARGB is noted in report.
+	public static ExportOptions resolveFormat(Volume volume, LUT viewerLut, ExportOptions options, ExportReport report){
+		int channel = singleChannel(volume, viewerLut);
+		AtlasComposer.Format format = options.atlasFormat;
+		if (format == AtlasComposer.Format.AUTO){
+			format = channel >= 0 ? AtlasComposer.Format.PALETTE : AtlasComposer.Format.ARGB;
+		} else if (format != AtlasComposer.Format.ARGB && channel < 0){
+			report.error("More than one channel is visible, so " + format.toString().toLowerCase() + " atlases can't be written: wrote ARGB atlases instead", null);
+			format = AtlasComposer.Format.ARGB;
+		}
+		ExportOptions resolved = options.copy();
+		resolved.atlasFormat = format;
+		return resolved;
+	}
+
+	// The only channel the viewer shows, or -1 if there is more than one
+	public static int singleChannel(Volume volume, LUT viewerLut){
+		if (volume.getSizeC() == 1) return 0;
+		int found = -1;
+		for (int c=0; c<volume.getSizeC(); c++){
+			if (viewerLut.getLutChannel(c).isEnabled()){
+				if (found >= 0) return -1;
+				found = c;
+			}
+		}
+		return found;
+	}
+
+	// Stages export() will report for one frame, for planning progress
+	public static void expectStages(ExportOptions options, ExportReport report){
+		if (inMemory(options) && !options.bricked){
+			report.expect(ExportReport.EXTRACT_FRAME, 1);
+			report.expect(ExportReport.CONVERT_COLOR, 1);
+			report.expect(ExportReport.SCALE_XY, 1);
+			report.expect(ExportReport.SCALE_Z, 1);
+		}
+		report.expect(ExportReport.COMPOSE, 1);
+	}
+
+	// Atlas renderer for every frame of a time series. It maps the full 8-bit range of the
+	// ARGB channels, so the same intensity looks the same in every frame.
+	public static ArgbConverter createSharedConverter(Volume volume, LUT viewerLut, ExportOptions options){
+		int width = scaledSize(volume.getSizeX(), options.scaleX);
+		int height = scaledSize(volume.getSizeY(), options.scaleY);
+		Sequence first = new Sequence();
+		first.addImage(prepareSlice(volume.getImage(checkedTimePoint(volume, options.timePoint), 0), viewerLut, width, height));
+		return new ArgbConverter(createAtlasLUT(first, true));
+	}
+
+	// Atlas renderer for the brick of frame options.timePoint alone, with the LUT fitted to
+	// the colours FusedArgbKernel gives it. That takes an extra streaming pass, measuring
+	// every output slice without keeping any. The slices are measured at full resolution and
+	// area averaged by the kernel, exactly as exportStreaming renders them.
+	public static ArgbConverter createFittedConverter(final Volume volume, LUT viewerLut, final ExportOptions options, final ExportReport report, final BrickGrid.Brick brick){
+		final int t = checkedTimePoint(volume, options.timePoint);
+		final int width = brick.width();
+		final int height = brick.height();
+		final FusedArgbKernel kernel = new FusedArgbKernel(viewerLut, null);
+		final int[] min = {0xFF, 0xFF, 0xFF, 0xFF};
+		final int[] max = new int[4];
+		streamSlices(z -> brick.slice(volume, t, z), brick, brick.sizeX, brick.sizeY, options, (z, slice) -> {
+			report.checkCancelled();
+			kernel.measure(slice, width, height, min, max);
+		});
+
+		// createAtlasLUT only looks at the bounds of each channel, so a stack holding just
+		// those stands in for the whole one
+		IcyBufferedImage bounds = new IcyBufferedImage(2, 1, 4, DataType.UBYTE);
+		for (int c=0; c<4; c++){
+			byte[] data = (byte[]) bounds.getDataXY(c);
+			data[0] = (byte) min[c];
+			data[1] = (byte) max[c];
+		}
+		bounds.dataChanged();
+		Sequence boundsStack = new Sequence();
+		boundsStack.addImage(bounds);
+		return new ArgbConverter(createAtlasLUT(boundsStack, false));
+	}
+
+	public static int checkedTimePoint(Volume volume, int t){
+		if (t < 0 || t >= volume.getSizeT()){
+			System.out.println("Selected frame does not exist for this sequence: using frame 0.");
+			return 0;
+		}
+		return t;
+	}
+
+	// Converts, scales and composes whole intermediate sequences one after another.
+	public static AtlasSet exportInMemory(Sequence seq, LUT viewerLut, ExportOptions options, ArgbConverter converter, ExportReport report){
+		String frame = "t" + options.timePoint;
+
+		// Get time slice
+		Sequence sliceArray;
+		try (ExportReport.Stage stage = report.start(ExportReport.EXTRACT_FRAME, frame).bytesIn(ExportReport.bytes(seq))) {
+			sliceArray = SequenceUtil.extractFrame(seq, checkedTimePoint(Volume.of(seq), options.timePoint));
+			stage.bytesOut(ExportReport.bytes(sliceArray)).end();
+		}
+
+		// Convert to the right color
+		try (ExportReport.Stage stage = report.start(ExportReport.CONVERT_COLOR, frame).bytesIn(ExportReport.bytes(sliceArray))) {
+			sliceArray = SequenceUtil.convertColor(sliceArray, BufferedImage.TYPE_INT_ARGB, viewerLut);
+			stage.bytesOut(ExportReport.bytes(sliceArray)).end();
+		}
+
+		// Scale image
+		try (ExportReport.Stage stage = report.start(ExportReport.SCALE_XY, frame).bytesIn(ExportReport.bytes(sliceArray))) {
+			sliceArray = SequenceUtil.scale(sliceArray, scaledSize(sliceArray.getSizeX(), options.scaleX), scaledSize(sliceArray.getSizeY(), options.scaleY));
+			stage.bytesOut(ExportReport.bytes(sliceArray)).end();
+		}
+
+		// Scale in z (sliceArray only holds the extracted frame now)
+		if (options.scalesZ()){
+			try (ExportReport.Stage stage = report.start(ExportReport.SCALE_Z, frame).bytesIn(ExportReport.bytes(sliceArray))) {
+				sliceArray = ZScaler.scaleZ(sliceArray, options.scaleZ);
+				stage.bytesOut(ExportReport.bytes(sliceArray)).end();
+			}
+		}
+
+		// Now we have our stack of images (sliceArray), we need to order it into the texture atlases
+		try (ExportReport.Stage stage = report.start(ExportReport.COMPOSE, frame).bytesIn(ExportReport.bytes(sliceArray))) {
+			AtlasLayout layout = AtlasLayout.forOptions(sliceArray.getSizeX(), sliceArray.getSizeY(), sliceArray.getSizeZ(), options);
+			if (converter == null){
+				converter = new ArgbConverter(createAtlasLUT(sliceArray, false));
+			}
+
+			BufferedImage[] atlasArray = AtlasComposer.compose(sliceArray, 0, layout, converter, report);
+			stage.bytesOut(atlasBytes(layout)).end();
+			return new AtlasSet(layout, atlasArray);
+		}
+	}
+
+	// Takes each output slice (interpolated in z from the raw source slices, if need be)
+	// through FusedArgbKernel, which scales and colours it straight into its atlas cell.
+	// The output stack is split into contiguous bands, one per worker, so each worker
+	// only ever holds two source slices. The stages are interleaved, so they are
+	// reported as a single compose stage.
+	public static AtlasSet exportStreaming(Sequence seq, LUT viewerLut, ExportOptions options, ArgbConverter sharedConverter, ExportReport report){
+		Volume volume = Volume.of(seq);
+		return exportStreaming(volume, viewerLut, options, sharedConverter, report, BrickGrid.whole(volume, options));
+	}
+
+	public static AtlasSet exportStreaming(final Volume volume, final LUT viewerLut, final ExportOptions options, ArgbConverter sharedConverter, ExportReport report, BrickGrid.Brick brick){
+		final int t = checkedTimePoint(volume, options.timePoint);
+		try (ExportReport.Stage stage = report.start(ExportReport.COMPOSE, frameDetail(options, brick) + " (streaming)")
+				.bytesIn(brick.bytes(volume))) {
+			final int width = brick.width();
+			final int height = brick.height();
+			final int newDepth = brick.depth();
+
+			final AtlasLayout layout = AtlasLayout.forOptions(width, height, newDepth, options);
+			final BufferedImage[] atlasArray = AtlasComposer.createAtlases(layout);
+			final int[][] atlasData = new int[layout.numberOfAtlases][];
+			for (int i=0; i<layout.numberOfAtlases; i++){
+				atlasData[i] = ((DataBufferInt) atlasArray[i].getRaster().getDataBuffer()).getData();
+			}
+
+			// A frame of its own is fitted to its colours, as exportInMemory fits it to the
+			// converted stack. The bricks of a frame all use the full 8-bit range, so they match;
+			// Exporter builds that converter once for all of them.
+			ArgbConverter converter = sharedConverter;
+			if (converter == null){
+				converter = brick.isWhole() ? createFittedConverter(volume, viewerLut, options, report, brick) : createSharedConverter(volume, viewerLut, options);
+			}
+			final FusedArgbKernel kernel = new FusedArgbKernel(viewerLut, converter);
+
+			streamSlices(z -> brick.slice(volume, t, z), brick, brick.sizeX, brick.sizeY, options, (z, slice) -> {
+				report.checkCancelled();
+				int dstOffset = layout.xStartPixel(z) + layout.yStartPixel(z) * layout.atlasWidth;
+				kernel.render(slice, width, height, atlasData[layout.atlasNumber(z)], dstOffset, layout.atlasWidth);
+			});
+
+			stage.bytesOut(atlasBytes(layout)).end();
+			return new AtlasSet(layout, atlasArray);
+		}
+	}
+
+	// Single-channel data straight to 8-bit palette or grayscale atlases. Slices are
+	// scaled in their own data type and only turned into colormap indices in the atlas,
+	// so no ARGB copy of anything is made. Always streamed.
+	public static AtlasSet exportIndexed(Sequence seq, LUT viewerLut, ExportOptions options, ArgbConverter sharedConverter, ExportReport report){
+		Volume volume = Volume.of(seq);
+		return exportIndexed(volume, viewerLut, options, sharedConverter, report, BrickGrid.whole(volume, options));
+	}
+
+	public static AtlasSet exportIndexed(final Volume volume, final LUT viewerLut, final ExportOptions options, ArgbConverter sharedConverter, ExportReport report, BrickGrid.Brick brick){
+		final int t = checkedTimePoint(volume, options.timePoint);
+		try (ExportReport.Stage stage = report.start(ExportReport.COMPOSE, frameDetail(options, brick) + " (" + options.atlasFormat.toString().toLowerCase() + ")")
+				.bytesIn(brick.bytes(volume))) {
+			final int channel = singleChannel(volume, viewerLut);
+			if (channel < 0){
+				throw new IllegalArgumentException(options.atlasFormat + " atlases need a single visible channel");
+			}
+			final int width = brick.width();
+			final int height = brick.height();
+			final int newDepth = brick.depth();
+
+			final AtlasLayout layout = AtlasLayout.forOptions(width, height, newDepth, options);
+			IndexColorModel palette = null;
+			if (options.atlasFormat == AtlasComposer.Format.PALETTE){
+				palette = IndexConverter.palette(viewerLut, channel, sharedConverter != null ? sharedConverter : createSharedConverter(volume, viewerLut, options));
+			}
+			final BufferedImage[] atlasArray = AtlasComposer.createAtlases(layout, palette);
+			final byte[][] atlasData = new byte[layout.numberOfAtlases][];
+			for (int i=0; i<layout.numberOfAtlases; i++){
+				atlasData[i] = ((DataBufferByte) atlasArray[i].getRaster().getDataBuffer()).getData();
+			}
+
+			final IndexConverter converter = new IndexConverter(viewerLut, channel);
+			streamSlices(z -> brick.slice(volume, t, z), brick, width, height, options, (z, slice) -> {
+				report.checkCancelled();
+				int dstOffset = layout.xStartPixel(z) + layout.yStartPixel(z) * layout.atlasWidth;
+				converter.convert(slice, atlasData[layout.atlasNumber(z)], dstOffset, layout.atlasWidth);
+			});
+
+			stage.bytesOut(layout.totalPixels()).end();
+			return new AtlasSet(layout, atlasArray);
+		}
+	}
+
+	private interface SliceSink {
+		void put(int z, IcyBufferedImage slice);
+	}
+
+	private static String frameDetail(ExportOptions options, BrickGrid.Brick brick){
+		return "t" + options.timePoint + (brick.isWhole() ? "" : " " + brick.folder());
+	}
+
+	// Hands every output slice of brick to sink, in the source data type and scaled to width x
+	// height, from the source slices of the brick. The output stack is split into contiguous
+	// bands, one per worker, each with its own SliceWindow.
+	private static void streamSlices(final IntFunction<IcyBufferedImage> source, final BrickGrid.Brick brick, final int width, final int height, final ExportOptions options, final SliceSink sink){
+		final int oldDepth = brick.readDepth();
+		final int newDepth = brick.depth();
+		final int numBands = Math.min(newDepth, Runtime.getRuntime().availableProcessors());
+		IntStream.range(0, numBands).parallel().forEach(band -> {
+			SliceWindow window = new SliceWindow(source, width, height);
+			int from = (int) ((long) newDepth * band / numBands);
+			int to = (int) ((long) newDepth * (band + 1) / numBands);
+			for (int z=from; z<to; z++){
+				IcyBufferedImage slice;
+				if (options.scalesZ()){
+					double oldZ = brick.sourceZ(z);
+					int zA = ZScaler.lowerSlice(oldZ, oldDepth);
+					double frac = ZScaler.upperWeight(oldZ, oldDepth);
+					slice = frac == 0 ? window.get(zA) : ZScaler.interpolate(window.get(zA), window.get(zA + 1), frac);
+				} else {
+					slice = window.get(z);
+				}
+				sink.put(z, slice);
+			}
+		});
+	}
+
+	// Colour converts (unless viewerLut is null) and XY scales a single source slice
+	public static IcyBufferedImage prepareSlice(Sequence seq, int t, int z, LUT viewerLut, int width, int height){
+		return prepareSlice(seq.getImage(t, z), viewerLut, width, height);
+	}
+
+	public static IcyBufferedImage prepareSlice(IcyBufferedImage slice, LUT viewerLut, int width, int height){
+		if (viewerLut != null){
+			slice = IcyBufferedImage.createFrom(IcyBufferedImageUtil.toBufferedImage(slice, BufferedImage.TYPE_INT_ARGB, viewerLut));
+		}
+		if (slice.getSizeX() != width || slice.getSizeY() != height){
+			slice = IcyBufferedImageUtil.scale(slice, width, height);
+		}
+		return slice;
+	}
+
+	// LUT used to render ARGB slices into the atlases, with alpha rising linearly with intensity.
+	// fullRange ignores the data bounds of the stack and maps the whole 8-bit range.
+	public static LUT createAtlasLUT(Sequence argbStack, boolean fullRange){
+		LUT argbLUT = argbStack.createCompatibleLUT();
+		argbLUT.setAlphaToLinear();
+
+		Scaler[] scalers = argbLUT.getScalers();
+		if (fullRange){
+			for (int i = 0; i<scalers.length; i++){
+				scalers[i].setLeftIn(0);
+				scalers[i].setRightIn(255);
+			}
+		}
+
+		double maxRightIn = 0;
+		for (int i = 0; i<3; i++){
+			double thisRightIn = scalers[i].getRightIn();
+			if (thisRightIn > maxRightIn)
+				maxRightIn = thisRightIn;
+		}
+
+		scalers[3].setRightIn(maxRightIn);
+		argbLUT.getLutChannel(3).setScaler(scalers[3]);
+		return argbLUT;
+	}
+
+	private static long atlasBytes(AtlasLayout layout){
+		return 4L * layout.totalPixels();
+	}
+
+	public static int scaledSize(int size, double scale){
+		return (int) Math.round((double) size * scale);
+	}
+
+	// Keeps the two most recently used prepared source slices
+	private static class SliceWindow {
+		private final IntFunction<IcyBufferedImage> source;
+		private final int width; private final int height;
+
+		private final int[] z = {-1, -1};
+		private final IcyBufferedImage[] slices = new IcyBufferedImage[2];
+		private int lastUsed = 0;
+
+		SliceWindow(IntFunction<IcyBufferedImage> source, int width, int height){
+			this.source = source;
+			this.width = width; this.height = height;
+		}
+
+		IcyBufferedImage get(int sliceZ){
+			for (int i=0; i<2; i++){
+				if (z[i] == sliceZ){
+					lastUsed = i;
+					return slices[i];
+				}
+			}
+			int evict = 1 - lastUsed;
+			slices[evict] = null; // let it go before preparing the next one
+			slices[evict] = prepareSlice(source.apply(sliceZ), null, width, height);
+			z[evict] = sliceZ;
+			lastUsed = evict;
+			return slices[evict];
+		}
+	}
+
+}
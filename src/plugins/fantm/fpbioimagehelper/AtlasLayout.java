@@ -0,0 +1,158 @@
+package plugins.fantm.fpbioimagehelper;
+
+public class AtlasLayout {
+
+	// Where every slice of the stack goes in the texture atlases.
+	// FPBioimage's original layout pads slices and atlases to powers of 2, split round-robin
+	// over 8 atlases. The tight layout keeps the round-robin split but packs unpadded slice
+	// cells into the smallest grid that fits, over any number of atlases.
+
+	public enum Packing {
+		POWER_OF_TWO, TIGHT
+	}
+
+	public static final int DEFAULT_NUMBER_OF_ATLASES = 8;
+	public static final int Z_PADDING = 4;
+
+	// Largest texture most WebGL implementations accept
+	public static final int DEFAULT_MAX_ATLAS_SIZE = 4096;
+
+	public final Packing packing;
+
+	public final int sliceWidth; public final int sliceHeight;
+	public final int numberOfImages;
+
+	public final int numberOfAtlases;
+	public final int zPadding = Z_PADDING;
+
+	// Size of the cell each slice is centred in
+	public final int paddedSliceWidth; public final int paddedSliceHeight;
+	public final int xOffset; public final int yOffset;
+
+	public final int slicesPerAtlas;
+	public final int atlasWidth; public final int atlasHeight;
+	public final int slicesPerRow;
+
+	public AtlasLayout(int sliceWidth, int sliceHeight, int numberOfImages){
+		this(sliceWidth, sliceHeight, numberOfImages, DEFAULT_NUMBER_OF_ATLASES);
+	}
+
+	// The power of 2 layout
+	public AtlasLayout(int sliceWidth, int sliceHeight, int numberOfImages, int numberOfAtlases){
+		this.packing = Packing.POWER_OF_TWO;
+		this.sliceWidth = sliceWidth;
+		this.sliceHeight = sliceHeight;
+		this.numberOfImages = numberOfImages;
+		this.numberOfAtlases = numberOfAtlases;
+
+		int paddedSliceDepth = numberOfImages + zPadding;
+
+		paddedSliceWidth = ceil2(sliceWidth);
+		paddedSliceHeight = ceil2(sliceHeight);
+
+		xOffset = (int)Math.floor((paddedSliceWidth - sliceWidth)/2);
+		yOffset = (int)Math.floor((paddedSliceHeight - sliceHeight)/2);
+
+		slicesPerAtlas = (int)Math.ceil((float)paddedSliceDepth/(float)numberOfAtlases);
+		int width = ceil2(paddedSliceWidth);
+		int height = ceil2(paddedSliceHeight * slicesPerAtlas);
+		while ((height > 2*width) && (height > sliceHeight)){
+			height /= 2;
+			width *= 2;
+		}
+		atlasWidth = width;
+		atlasHeight = height;
+
+		slicesPerRow = (int)Math.floor((float)atlasWidth/(float)paddedSliceWidth);
+	}
+
+	private AtlasLayout(int sliceWidth, int sliceHeight, int numberOfImages, int numberOfAtlases, int slicesPerAtlas, int slicesPerRow){
+		this.packing = Packing.TIGHT;
+		this.sliceWidth = sliceWidth;
+		this.sliceHeight = sliceHeight;
+		this.numberOfImages = numberOfImages;
+		this.numberOfAtlases = numberOfAtlases;
+
+		paddedSliceWidth = sliceWidth;
+		paddedSliceHeight = sliceHeight;
+		xOffset = 0;
+		yOffset = 0;
+
+		this.slicesPerAtlas = slicesPerAtlas;
+		this.slicesPerRow = slicesPerRow;
+		atlasWidth = slicesPerRow * sliceWidth;
+		atlasHeight = ((slicesPerAtlas + slicesPerRow - 1) / slicesPerRow) * sliceHeight;
+	}
+
+	// Picks the number of columns giving the smallest atlases within maxAtlasSize (the most
+	// square of those, on a tie)
+	public static AtlasLayout tight(int sliceWidth, int sliceHeight, int numberOfImages, int numberOfAtlases, int maxAtlasSize){
+		int slicesPerAtlas = (numberOfImages + Z_PADDING + numberOfAtlases - 1) / numberOfAtlases;
+
+		int bestColumns = -1;
+		long bestArea = Long.MAX_VALUE; long bestSide = Long.MAX_VALUE;
+		for (int columns=1; columns<=slicesPerAtlas; columns++){
+			int rows = (slicesPerAtlas + columns - 1) / columns;
+			long width = (long) columns * sliceWidth; long height = (long) rows * sliceHeight;
+			if (width > maxAtlasSize || height > maxAtlasSize) continue;
+			long area = width * height;
+			long side = Math.max(width, height);
+			if (area < bestArea || (area == bestArea && side < bestSide)){
+				bestColumns = columns; bestArea = area; bestSide = side;
+			}
+		}
+		if (bestColumns < 0){
+			throw new IllegalArgumentException(slicesPerAtlas + " slices of " + sliceWidth + "x" + sliceHeight
+					+ " don't fit in a " + maxAtlasSize + "x" + maxAtlasSize + " atlas. Please use more atlases or scale the image down.");
+		}
+		return new AtlasLayout(sliceWidth, sliceHeight, numberOfImages, numberOfAtlases, slicesPerAtlas, bestColumns);
+	}
+
+	public static AtlasLayout forOptions(int sliceWidth, int sliceHeight, int numberOfImages, ExportOptions options){
+		if (options.packing == Packing.TIGHT){
+			return tight(sliceWidth, sliceHeight, numberOfImages, options.numberOfAtlases, options.maxAtlasSize);
+		}
+		return new AtlasLayout(sliceWidth, sliceHeight, numberOfImages, options.numberOfAtlases);
+	}
+
+	public int atlasNumber(int slice){
+		return (slice + zPadding/2) % numberOfAtlases;
+	}
+
+	private int locationIndex(int slice){
+		return (slice + zPadding/2) / numberOfAtlases;
+	}
+
+	// Top-left pixel of the slice (excluding padding) in its atlas
+	public int xStartPixel(int slice){
+		return (locationIndex(slice) % slicesPerRow) * paddedSliceWidth + xOffset;
+	}
+
+	public int yStartPixel(int slice){
+		int yStartPixel = (locationIndex(slice) / slicesPerRow) * paddedSliceHeight;
+		return atlasHeight - yStartPixel - paddedSliceHeight + yOffset;
+	}
+
+	// Pixels in all the atlases, padding included
+	public long totalPixels(){
+		return (long) atlasWidth * atlasHeight * numberOfAtlases;
+	}
+
+	// The layout as a JavaScript object literal, for the webpage. Keys are quoted so it is
+	// also valid JSON, for the brick manifest.
+	public String toJavaScript(){
+		return "{\"packing\": \"" + (packing == Packing.TIGHT ? "tight" : "pow2") + "\""
+				+ ", \"numberOfAtlases\": " + numberOfAtlases
+				+ ", \"atlasWidth\": " + atlasWidth + ", \"atlasHeight\": " + atlasHeight
+				+ ", \"cellWidth\": " + paddedSliceWidth + ", \"cellHeight\": " + paddedSliceHeight
+				+ ", \"xOffset\": " + xOffset + ", \"yOffset\": " + yOffset
+				+ ", \"slicesPerRow\": " + slicesPerRow + ", \"slicesPerAtlas\": " + slicesPerAtlas
+				+ ", \"zPadding\": " + zPadding + "}";
+	}
+
+	public static int ceil2(int x){
+		// Round an int up to the next power of 2
+		return x <= 1 ? 1 : Integer.highestOneBit(x - 1) << 1;
+	}
+
+}
@@ -0,0 +1,138 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.util.stream.IntStream;
+
+public class AtlasPyramid {
+
+	// Reduced-resolution levels of an atlas set, each half the size of the one before in
+	// x, y and z. They are built from the atlases already composed, so the sequence is only
+	// read once whatever the number of levels. Level k goes in the lod<k> folder.
+
+	public static String levelFolder(int level){
+		return "lod" + level;
+	}
+
+	// The level below src: every voxel is the average of the (up to) 2x2x2 voxels it covers.
+	// Returns null if src can't get any smaller.
+	public static AtlasSet downsample(AtlasSet src, ExportOptions options){
+		final AtlasLayout srcLayout = src.layout;
+		if (srcLayout.sliceWidth == 1 && srcLayout.sliceHeight == 1 && srcLayout.numberOfImages == 1){
+			return null;
+		}
+		final AtlasLayout layout = AtlasLayout.forOptions(half(srcLayout.sliceWidth), half(srcLayout.sliceHeight), half(srcLayout.numberOfImages), options);
+		if (src.atlases[0].getRaster().getDataBuffer() instanceof DataBufferByte){
+			return downsampleBytes(src, layout);
+		}
+
+		final int[][] srcData = data(src.atlases);
+		final BufferedImage[] atlasArray = AtlasComposer.createAtlases(layout);
+		final int[][] atlasData = data(atlasArray);
+
+		IntStream.range(0, layout.numberOfImages).parallel().forEach(z -> {
+			int z0 = 2*z; int z1 = Math.min(2*z + 1, srcLayout.numberOfImages - 1);
+			int[] a = srcData[srcLayout.atlasNumber(z0)]; int aOffset = srcLayout.xStartPixel(z0) + srcLayout.yStartPixel(z0) * srcLayout.atlasWidth;
+			int[] b = srcData[srcLayout.atlasNumber(z1)]; int bOffset = srcLayout.xStartPixel(z1) + srcLayout.yStartPixel(z1) * srcLayout.atlasWidth;
+			int[] dst = atlasData[layout.atlasNumber(z)]; int dstOffset = layout.xStartPixel(z) + layout.yStartPixel(z) * layout.atlasWidth;
+			boolean twoSlices = z1 != z0;
+			int[] sum = new int[4];
+
+			for (int y=0; y<layout.sliceHeight; y++){
+				int y0 = 2*y; int y1 = Math.min(2*y + 1, srcLayout.sliceHeight - 1);
+				for (int x=0; x<layout.sliceWidth; x++){
+					int x0 = 2*x; int x1 = Math.min(2*x + 1, srcLayout.sliceWidth - 1);
+					sum[0] = 0; sum[1] = 0; sum[2] = 0; sum[3] = 0;
+					int n = add(sum, a, aOffset, srcLayout.atlasWidth, x0, x1, y0, y1);
+					if (twoSlices) n += add(sum, b, bOffset, srcLayout.atlasWidth, x0, x1, y0, y1);
+					dst[dstOffset + y*layout.atlasWidth + x] = average(sum, n);
+				}
+			}
+		});
+
+		return new AtlasSet(layout, atlasArray);
+	}
+
+	// Palette and grayscale atlases: the byte values are averaged, as palettes follow
+	// the colormap in order
+	private static AtlasSet downsampleBytes(AtlasSet src, final AtlasLayout layout){
+		final AtlasLayout srcLayout = src.layout;
+		final byte[][] srcData = new byte[src.atlases.length][];
+		for (int i=0; i<src.atlases.length; i++){
+			srcData[i] = ((DataBufferByte) src.atlases[i].getRaster().getDataBuffer()).getData();
+		}
+		ColorModel colorModel = src.atlases[0].getColorModel();
+		final BufferedImage[] atlasArray = AtlasComposer.createAtlases(layout, colorModel instanceof IndexColorModel ? (IndexColorModel) colorModel : null);
+		final byte[][] atlasData = new byte[atlasArray.length][];
+		for (int i=0; i<atlasArray.length; i++){
+			atlasData[i] = ((DataBufferByte) atlasArray[i].getRaster().getDataBuffer()).getData();
+		}
+
+		IntStream.range(0, layout.numberOfImages).parallel().forEach(z -> {
+			int z0 = 2*z; int z1 = Math.min(2*z + 1, srcLayout.numberOfImages - 1);
+			byte[] a = srcData[srcLayout.atlasNumber(z0)]; int aOffset = srcLayout.xStartPixel(z0) + srcLayout.yStartPixel(z0) * srcLayout.atlasWidth;
+			byte[] b = srcData[srcLayout.atlasNumber(z1)]; int bOffset = srcLayout.xStartPixel(z1) + srcLayout.yStartPixel(z1) * srcLayout.atlasWidth;
+			byte[] dst = atlasData[layout.atlasNumber(z)]; int dstOffset = layout.xStartPixel(z) + layout.yStartPixel(z) * layout.atlasWidth;
+			boolean twoSlices = z1 != z0;
+			int stride = srcLayout.atlasWidth;
+
+			for (int y=0; y<layout.sliceHeight; y++){
+				int y0 = 2*y; int y1 = Math.min(2*y + 1, srcLayout.sliceHeight - 1);
+				for (int x=0; x<layout.sliceWidth; x++){
+					int x0 = 2*x; int x1 = Math.min(2*x + 1, srcLayout.sliceWidth - 1);
+					int sum = 0; int n = 0;
+					for (int yy=y0; yy<=y1; yy++){
+						for (int xx=x0; xx<=x1; xx++){
+							sum += a[aOffset + yy*stride + xx] & 0xFF;
+							n++;
+							if (twoSlices){
+								sum += b[bOffset + yy*stride + xx] & 0xFF;
+								n++;
+							}
+						}
+					}
+					dst[dstOffset + y*layout.atlasWidth + x] = (byte) ((sum + n/2) / n);
+				}
+			}
+		});
+
+		return new AtlasSet(layout, atlasArray);
+	}
+
+	private static int half(int size){
+		return (size + 1) / 2;
+	}
+
+	// Adds the channels of the distinct pixels in [x0,x1]x[y0,y1] to sum; returns how many
+	private static int add(int[] sum, int[] data, int offset, int stride, int x0, int x1, int y0, int y1){
+		int n = 0;
+		for (int y=y0; y<=y1; y++){
+			for (int x=x0; x<=x1; x++){
+				int argb = data[offset + y*stride + x];
+				sum[0] += argb >>> 24;
+				sum[1] += (argb >> 16) & 0xFF;
+				sum[2] += (argb >> 8) & 0xFF;
+				sum[3] += argb & 0xFF;
+				n++;
+			}
+		}
+		return n;
+	}
+
+	private static int average(int[] sum, int n){
+		int half = n / 2;
+		return (((sum[0] + half) / n) << 24) | (((sum[1] + half) / n) << 16) | (((sum[2] + half) / n) << 8) | ((sum[3] + half) / n);
+	}
+
+	private static int[][] data(BufferedImage[] atlases){
+		int[][] data = new int[atlases.length][];
+		for (int i=0; i<atlases.length; i++){
+			data[i] = ((DataBufferInt) atlases[i].getRaster().getDataBuffer()).getData();
+		}
+		return data;
+	}
+
+}
@@ -0,0 +1,29 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.awt.image.BufferedImage;
+
+public class AtlasSet {
+
+	// The composed texture atlases of one export, and the layout they were built with
+	public final AtlasLayout layout;
+	public final BufferedImage[] atlases;
+
+	public AtlasSet(AtlasLayout layout, BufferedImage[] atlases){
+		this.layout = layout;
+		this.atlases = atlases;
+	}
+
+	// Size of the uncompressed pixel data
+	public long bytes(){
+		long bytes = 0;
+		for (BufferedImage atlas : atlases){
+			bytes += bytes(atlas);
+		}
+		return bytes;
+	}
+
+	public static long bytes(BufferedImage atlas){
+		return (long) atlas.getWidth() * atlas.getHeight() * atlas.getColorModel().getPixelSize() / 8;
+	}
+
+}
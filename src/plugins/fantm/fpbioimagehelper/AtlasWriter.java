@@ -0,0 +1,80 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+public class AtlasWriter {
+
+	// Encodes the atlases to <prefix>_zNNNN.<fileType> (the names the webpage template
+	// expects), each atlas on its own thread.
+
+	public static String atlasFilename(String prefix, int atlasNumber){
+		return atlasFilename(prefix, atlasNumber, "png");
+	}
+
+	public static String atlasFilename(String prefix, int atlasNumber, String fileType){
+		return prefix + "_z" + String.format("%04d", atlasNumber) + "." + fileType;
+	}
+
+	// Starts encoding every atlas on the executor; each future completes with its file
+	// as soon as that atlas is written, so callers can start on it straight away.
+	public static CompletableFuture<File>[] writeAsync(BufferedImage[] atlases, File dir, String prefix, ExportOptions options, Executor executor){
+		return writeAsync(atlases, dir, prefix, options, executor, new ExportReport());
+	}
+
+	// Each encode is timed into report
+	public static CompletableFuture<File>[] writeAsync(BufferedImage[] atlases, File dir, String prefix, ExportOptions options, Executor executor, final ExportReport report){
+		dir.mkdirs();
+		final AtlasEncoder encoder = AtlasEncoders.create(options);
+
+		@SuppressWarnings("unchecked")
+		CompletableFuture<File>[] written = new CompletableFuture[atlases.length];
+		for (int i=0; i<atlases.length; i++){
+			final BufferedImage atlas = atlases[i];
+			final File file = new File(dir, atlasFilename(prefix, i, encoder.fileType()));
+			written[i] = CompletableFuture.supplyAsync(() -> {
+				try (ExportReport.Stage stage = report.start(ExportReport.ENCODE, file.getPath()).bytesIn(AtlasSet.bytes(atlas))) {
+					try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+						encoder.write(atlas, out);
+					} catch (IOException e) {
+						stage.fail(e);
+						throw new UncheckedIOException(e);
+					}
+					stage.bytesOut(file.length()).end();
+					return file;
+				}
+			}, executor);
+		}
+		return written;
+	}
+
+	public static File[] write(BufferedImage[] atlases, File dir, String prefix, ExportOptions options) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(atlases.length, Runtime.getRuntime().availableProcessors())));
+		try {
+			CompletableFuture<File>[] written = writeAsync(atlases, dir, prefix, options, executor);
+			File[] files = new File[written.length];
+			for (int i=0; i<written.length; i++){
+				files[i] = written[i].join();
+			}
+			return files;
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof UncheckedIOException){
+				throw ((UncheckedIOException) e.getCause()).getCause();
+			}
+			throw e;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+}
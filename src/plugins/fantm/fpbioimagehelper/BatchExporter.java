@@ -0,0 +1,289 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.S3Object;
+
+import icy.file.Loader;
+import icy.image.lut.LUT;
+import icy.main.Icy;
+import icy.plugin.PluginLoader;
+import icy.sequence.Sequence;
+import icy.sequence.SequenceUtil;
+
+public class BatchExporter {
+
+	// Unattended export of many datasets on N workers. Nothing here ever prompts:
+	// invalid names are sanitised, and existing uploads are dealt with by a ConflictPolicy.
+	//
+	// Command line, run from the Icy folder with Icy and the plugin on the classpath (it
+	// starts Icy headless before loading anything):
+	//   java plugins.fantm.fpbioimagehelper.BatchExporter jobs.csv outputDir [workers] [policy]
+	// Each non-empty, non-# line of jobs.csv is
+	//   inputFile,uniqueName,scaleX,scaleY,scaleZ,voxelX,voxelY,voxelZ,timePoint,upload,stageOnDisk
+	// where everything after inputFile is optional (empty fields keep their defaults).
+	// stageOnDisk reads the file plane by plane into a scratch file (see MappedVolume)
+	// instead of loading it, for stacks bigger than the heap.
+
+	public enum ConflictPolicy {
+		OVERWRITE, // Overwrite if the host allows it (less than 24 hours old), otherwise rename
+		RENAME, // Always upload under a new name: name_2, name_3, ...
+		SKIP, // Save locally but don't upload
+		FAIL // Fail the job
+	}
+
+	public static class Job {
+		public final File input;
+		public final ExportOptions options;
+		public boolean upload = false;
+		public boolean stageOnDisk = false;
+
+		public Job(File input, ExportOptions options){
+			this.input = input;
+			this.options = options;
+		}
+	}
+
+	public static class Result {
+		public final Job job;
+		public File htmlFile; // null if the job failed
+		public String keyPrefix; // null if nothing was uploaded
+		public Exception error;
+
+		Result(Job job){
+			this.job = job;
+		}
+	}
+
+	private final File outputDir;
+	private final int workers;
+	private final ConflictPolicy policy;
+
+	// Names already taken by jobs of this run, so two jobs never write to the same place
+	private final Set<String> claimedNames = new HashSet<String>();
+
+	// Sequences with a single z-slice but several frames have Z and T swapped first,
+	// which is what users answer to the plugin's prompt nearly every time
+	public boolean swapSingleSliceZT = true;
+
+	// Where jobs that stage on disk put their scratch files (the system temp dir if null)
+	public File scratchDir = null;
+
+	public BatchExporter(File outputDir, int workers, ConflictPolicy policy){
+		this.outputDir = outputDir;
+		this.workers = workers;
+		this.policy = policy;
+	}
+
+	public List<Result> run(List<Job> jobs){
+		boolean anyUpload = false;
+		for (Job job : jobs) anyUpload |= job.upload;
+		// Null if the storage client couldn't be made, which fails only the jobs that upload
+		StorageClient client = anyUpload ? Bucket.getStorageClient() : null;
+		final Uploader uploader = client != null ? new Uploader(client, FpBioimageHelper.bucketName, Uploader.DEFAULT_THREADS * workers) : null;
+
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		try {
+			List<Future<Result>> futures = new ArrayList<Future<Result>>();
+			for (final Job job : jobs){
+				futures.add(executor.submit(() -> runJob(job, uploader)));
+			}
+
+			List<Result> results = new ArrayList<Result>();
+			for (int i=0; i<futures.size(); i++){
+				try {
+					results.add(futures.get(i).get());
+				} catch (InterruptedException | ExecutionException e) {
+					Result result = new Result(jobs.get(i));
+					result.error = e;
+					results.add(result);
+				}
+			}
+			return results;
+		} finally {
+			executor.shutdown();
+			if (uploader != null) uploader.shutdown();
+		}
+	}
+
+	private Result runJob(Job job, Uploader uploader){
+		Result result = new Result(job);
+		try {
+			if (job.upload && uploader == null){
+				throw new IOException("Could not connect to the storage host (see the output above), so " + job.input + " can't be uploaded");
+			}
+			ExportOptions options = job.options;
+			if (!Exporter.isValidName(options.uniqueName)){
+				options.uniqueName = Exporter.sanitizeName(options.uniqueName);
+			}
+			options.uniqueName = claimName(options.uniqueName);
+
+			ExportReport report = new ExportReport();
+			try (MappedVolume staged = job.stageOnDisk ? MappedVolume.stage(job.input.getPath(), options, swapSingleSliceZT, scratchDir, report) : null) {
+				// No viewer when headless: render through the sequence's default LUT
+				Volume volume;
+				LUT lut;
+				if (staged != null){
+					volume = staged;
+					lut = staged.createLUT();
+				} else {
+					Sequence seq = Loader.loadSequence(job.input.getPath(), 0, false);
+					if (seq == null){
+						throw new IOException("Could not load " + job.input);
+					}
+					if (swapSingleSliceZT && seq.getSizeZ() == 1 && seq.getSizeT() > 1){
+						SequenceUtil.adjustZT(seq, seq.getSizeT(), seq.getSizeZ(), true);
+					}
+					volume = Volume.of(seq);
+					lut = seq.createCompatibleLUT();
+				}
+				Exporter.autoCrop(volume, options, report);
+
+				String sizeError = Exporter.checkSize(volume, options);
+				if (sizeError != null){
+					throw new IllegalArgumentException(sizeError);
+				}
+
+				String keyPrefix = null;
+				if (job.upload && uploader != null){
+					keyPrefix = resolveKeyPrefix(uploader, options.uniqueName);
+				}
+
+				result.htmlFile = Exporter.export(volume, lut, new File(outputDir, options.uniqueName), options,
+						keyPrefix == null ? null : uploader, keyPrefix, report);
+				result.keyPrefix = keyPrefix;
+			}
+		} catch (Exception e) {
+			result.error = e;
+		}
+		return result;
+	}
+
+	// The key prefix to upload uniqueName under, or null if it shouldn't be uploaded
+	private String resolveKeyPrefix(Uploader uploader, String uniqueName) throws ServiceException {
+		S3Object existing = findExistingPage(uploader, uniqueName);
+		if (existing == null) return uniqueName;
+
+		switch (policy){
+		case OVERWRITE:
+			Instant then = existing.getLastModifiedDate().toInstant();
+			if (then.isAfter(Instant.now().minus(24, ChronoUnit.HOURS))){
+				return uniqueName;
+			}
+			// Too old to overwrite: fall through to renaming
+		case RENAME:
+			synchronized (claimedNames){
+				for (int suffix = 2; ; suffix++){
+					String candidate = uniqueName + "_" + suffix;
+					if (!claimedNames.contains(candidate) && findExistingPage(uploader, candidate) == null){
+						claimedNames.add(candidate);
+						return candidate;
+					}
+				}
+			}
+		case SKIP:
+			return null;
+		default:
+			throw new IllegalStateException(uniqueName + " already exists on the host");
+		}
+	}
+
+	private String claimName(String uniqueName){
+		synchronized (claimedNames){
+			String name = uniqueName;
+			for (int suffix = 2; claimedNames.contains(name); suffix++){
+				name = uniqueName + "_" + suffix;
+			}
+			claimedNames.add(name);
+			return name;
+		}
+	}
+
+	private static S3Object findExistingPage(Uploader uploader, String keyPrefix) throws ServiceException {
+		Map<String, S3Object> objects = uploader.listObjects(keyPrefix);
+		return objects.get(keyPrefix + "/index.html");
+	}
+
+	public static List<Job> readJobs(File jobsFile) throws IOException {
+		List<Job> jobs = new ArrayList<Job>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(jobsFile))) {
+			String line;
+			while ((line = reader.readLine()) != null){
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) continue;
+
+				String[] fields = line.split(",", -1);
+				File input = new File(fields[0].trim());
+				ExportOptions options = new ExportOptions();
+				String name = field(fields, 1);
+				options.uniqueName = name != null ? name : input.getName().replaceFirst("\\.[^.]*$", "");
+				options.scaleX = doubleField(fields, 2, options.scaleX);
+				options.scaleY = doubleField(fields, 3, options.scaleY);
+				options.scaleZ = doubleField(fields, 4, options.scaleZ);
+				options.voxelSizeX = doubleField(fields, 5, options.voxelSizeX);
+				options.voxelSizeY = doubleField(fields, 6, options.voxelSizeY);
+				options.voxelSizeZ = doubleField(fields, 7, options.voxelSizeZ);
+				options.timePoint = (int) doubleField(fields, 8, options.timePoint);
+
+				Job job = new Job(input, options);
+				job.upload = Boolean.parseBoolean(field(fields, 9));
+				job.stageOnDisk = Boolean.parseBoolean(field(fields, 10));
+				jobs.add(job);
+			}
+		}
+		return jobs;
+	}
+
+	private static String field(String[] fields, int i){
+		if (i >= fields.length || fields[i].trim().isEmpty()) return null;
+		return fields[i].trim();
+	}
+
+	private static double doubleField(String[] fields, int i, double defaultValue){
+		String value = field(fields, i);
+		return value == null ? defaultValue : Double.parseDouble(value);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2){
+			System.err.println("Usage: BatchExporter jobs.csv outputDir [workers] [OVERWRITE|RENAME|SKIP|FAIL]");
+			System.exit(2);
+		}
+		int workers = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		ConflictPolicy policy = args.length > 3 ? ConflictPolicy.valueOf(args[3].toUpperCase()) : ConflictPolicy.RENAME;
+
+		// Loader needs Icy running (headless here) with its plugins loaded, which is where
+		// the file importers come from
+		Icy.main(new String[] {"--headless"});
+		PluginLoader.waitWhileLoading();
+
+		List<Result> results = new BatchExporter(new File(args[1]), workers, policy).run(readJobs(new File(args[0])));
+
+		int failures = 0;
+		for (Result result : results){
+			if (result.error != null){
+				failures++;
+				System.err.println("FAILED " + result.job.input + ": " + result.error);
+			} else {
+				System.out.println("OK " + result.job.input + " -> " + result.htmlFile + (result.keyPrefix != null ? " (uploaded as " + result.keyPrefix + ")" : ""));
+			}
+		}
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+}
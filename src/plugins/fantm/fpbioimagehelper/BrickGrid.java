@@ -0,0 +1,229 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import icy.image.IcyBufferedImage;
+import icy.image.IcyBufferedImageUtil;
+
+public class BrickGrid {
+
+	// Splits a volume (or the part of it options crops to) into bricks of source voxels,
+	// each at most brickSize voxels on a side once scaled, so every brick fits in a single
+	// atlas set. Each brick gets its own folder, and bricks.json next to the webpage
+	// describes the grid so a viewer can load them independently. Bricks are cut from the
+	// z resample of the whole region, not resampled on their own, so no seams show where
+	// they meet.
+
+	public static final String MANIFEST = "bricks.json";
+
+	public class Brick {
+		public final int ix; public final int iy; public final int iz;
+
+		// The source voxels of the brick
+		public final int x; public final int y; public final int z;
+		public final int sizeX; public final int sizeY; public final int sizeZ;
+
+		// Where the brick starts in the scaled volume
+		public final int outputX; public final int outputY; public final int outputZ;
+
+		private Brick(int ix, int iy, int iz){
+			this.ix = ix; this.iy = iy; this.iz = iz;
+			this.x = originX + ix * stepX; this.y = originY + iy * stepY; this.z = originZ + iz * stepZ;
+			this.sizeX = Math.min(stepX, sourceX - ix * stepX);
+			this.sizeY = Math.min(stepY, sourceY - iy * stepY);
+			this.sizeZ = Math.min(stepZ, sourceZ - iz * stepZ);
+			this.outputX = ix * AtlasExporter.scaledSize(stepX, options.scaleX);
+			this.outputY = iy * AtlasExporter.scaledSize(stepY, options.scaleY);
+			this.outputZ = BrickGrid.this.outputZ(iz * stepZ);
+		}
+
+		public String folder(){
+			return BrickGrid.folder(ix, iy, iz);
+		}
+
+		// Whether the brick is the whole volume, uncropped
+		public boolean isWhole(){
+			return sizeX == volumeX && sizeY == volumeY && sizeZ == volumeZ;
+		}
+
+		// Size of the brick once scaled
+		public int width(){
+			return AtlasExporter.scaledSize(sizeX, options.scaleX);
+		}
+
+		public int height(){
+			return AtlasExporter.scaledSize(sizeY, options.scaleY);
+		}
+
+		public int depth(){
+			return BrickGrid.this.outputZ(iz * stepZ + sizeZ) - outputZ;
+		}
+
+		// Source slices the z resample of the brick reads: its own, and the first of the
+		// next brick, which its last output slices are interpolated towards
+		public int readDepth(){
+			return Math.min(sizeZ + 1, sourceZ - iz * stepZ);
+		}
+
+		// Where output slice z of the brick falls between its source slices
+		public double sourceZ(int z){
+			if (!options.scalesZ()) return z;
+			return (outputZ + z) / options.scaleZ - iz * stepZ;
+		}
+
+		// The part of a source slice inside this brick
+		public IcyBufferedImage crop(IcyBufferedImage slice){
+			if (sizeX == slice.getSizeX() && sizeY == slice.getSizeY()) return slice;
+			return IcyBufferedImageUtil.getSubImage(slice, x, y, sizeX, sizeY);
+		}
+
+		// Source slice z of the brick (up to readDepth()), from frame t
+		public IcyBufferedImage slice(Volume volume, int t, int z){
+			return crop(volume.getImage(t, this.z + z));
+		}
+
+		public long bytes(Volume volume){
+			return (long) sizeX * sizeY * sizeZ * volume.getSizeC() * volume.getDataType_().getSize();
+		}
+	}
+
+	public final int volumeX; public final int volumeY; public final int volumeZ;
+
+	// The region split into bricks: the crop of options, or the whole volume
+	public final int originX; public final int originY; public final int originZ;
+	public final int sourceX; public final int sourceY; public final int sourceZ;
+	public final int stepX; public final int stepY; public final int stepZ;
+	public final int countX; public final int countY; public final int countZ;
+	private final ExportOptions options;
+	private final List<Brick> bricks = new ArrayList<Brick>();
+
+	// brickSize voxels per side after scaling, over the region of a volumeX x volumeY x
+	// volumeZ volume that options exports; that region is one brick if it fits
+	public BrickGrid(int volumeX, int volumeY, int volumeZ, int brickSize, ExportOptions options){
+		this.volumeX = volumeX; this.volumeY = volumeY; this.volumeZ = volumeZ;
+		boolean cropped = options.isCropped();
+		this.originX = cropped ? options.cropX : 0;
+		this.originY = cropped ? options.cropY : 0;
+		this.originZ = cropped ? options.cropZ : 0;
+		this.sourceX = cropped ? options.cropSizeX : volumeX;
+		this.sourceY = cropped ? options.cropSizeY : volumeY;
+		this.sourceZ = cropped ? options.cropSizeZ : volumeZ;
+		this.options = options;
+		stepX = step(sourceX, brickSize, options.scaleX);
+		stepY = step(sourceY, brickSize, options.scaleY);
+		// No brick can be left without an output slice
+		stepZ = options.scalesZ() ? Math.min(sourceZ, Math.max(step(sourceZ, brickSize, options.scaleZ), (int) Math.ceil(1 / options.scaleZ))) : step(sourceZ, brickSize, 1.0);
+		countX = (sourceX + stepX - 1) / stepX;
+		countY = (sourceY + stepY - 1) / stepY;
+		countZ = (sourceZ + stepZ - 1) / stepZ;
+		for (int iz=0; iz<countZ; iz++){
+			for (int iy=0; iy<countY; iy++){
+				for (int ix=0; ix<countX; ix++){
+					bricks.add(new Brick(ix, iy, iz));
+				}
+			}
+		}
+	}
+
+	public static BrickGrid forOptions(Volume volume, ExportOptions options){
+		int brickSize = options.bricked ? options.brickSize : Integer.MAX_VALUE;
+		return new BrickGrid(volume.getSizeX(), volume.getSizeY(), volume.getSizeZ(), brickSize, options);
+	}
+
+	// The whole of volume (or of its crop) as a single brick
+	public static Brick whole(Volume volume, ExportOptions options){
+		return new BrickGrid(volume.getSizeX(), volume.getSizeY(), volume.getSizeZ(), Integer.MAX_VALUE, options).getBricks().get(0);
+	}
+
+	// Source voxels per brick, so that scaled they are no more than brickSize
+	private static int step(int size, int brickSize, double scale){
+		if (brickSize == Integer.MAX_VALUE) return size;
+		int step = (int) Math.floor(brickSize / scale);
+		while (step > 1 && AtlasExporter.scaledSize(step, scale) > brickSize) step--;
+		return Math.max(1, Math.min(size, step));
+	}
+
+	// First slice of the scaled region at or after source slice z of the region. Each output
+	// slice belongs to the brick holding the source slice below it.
+	private int outputZ(int z){
+		if (!options.scalesZ()) return z;
+		if (z >= sourceZ) return ZScaler.newDepth(sourceZ, options.scaleZ);
+		return (int) Math.ceil(z * options.scaleZ);
+	}
+
+	public List<Brick> getBricks(){
+		return Collections.unmodifiableList(bricks);
+	}
+
+	public boolean isBricked(){
+		return bricks.size() > 1;
+	}
+
+	public static String folder(int ix, int iy, int iz){
+		return String.format("brick_%d_%d_%d", ix, iy, iz);
+	}
+
+	// levels holds, for each brick, its full resolution layout followed by any reduced
+	// resolution ones; frameFolders is as for the webpage
+	public void writeManifest(File file, Map<Brick, List<AtlasLayout>> levels, List<String> frameFolders) throws IOException {
+		Files.write(file.toPath(), toJson(levels, frameFolders).getBytes(StandardCharsets.UTF_8));
+	}
+
+	public String toJson(Map<Brick, List<AtlasLayout>> levels, List<String> frameFolders){
+		StringWriter json = new StringWriter();
+		PrintWriter out = new PrintWriter(json);
+		Brick last = bricks.get(bricks.size() - 1);
+
+		out.println("{");
+		out.println("  \"uniqueName\": \"" + options.uniqueName + "\",");
+		out.println("  \"grid\": [" + countX + ", " + countY + ", " + countZ + "],");
+		out.println("  \"size\": [" + (last.outputX + last.width()) + ", " + (last.outputY + last.height()) + ", " + (last.outputZ + last.depth()) + "],");
+		out.println("  \"voxelSize\": [" + options.voxelSizeX/options.scaleX + ", " + options.voxelSizeY/options.scaleY + ", " + options.voxelSizeZ/options.scaleZ + "],");
+		out.println("  \"sourceOffset\": [" + originX + ", " + originY + ", " + originZ + "],");
+		out.println("  \"sourceSize\": [" + sourceX + ", " + sourceY + ", " + sourceZ + "],");
+		out.println("  \"volumeSize\": [" + volumeX + ", " + volumeY + ", " + volumeZ + "],");
+		out.println("  \"fileType\": \"" + options.fileType + "\",");
+		out.println("  \"imagePrefix\": \"" + options.uniqueName + "_z\",");
+		List<String> lines = new ArrayList<String>();
+		for (String folder : frameFolders) lines.add("\"./" + folder + "/\"");
+		out.println("  \"timePoints\": [" + String.join(", ", lines) + "],");
+
+		out.println("  \"bricks\": [");
+		lines.clear();
+		for (Brick brick : bricks){
+			List<AtlasLayout> brickLevels = levels.get(brick);
+			String line = "    {\"index\": [" + brick.ix + ", " + brick.iy + ", " + brick.iz + "]"
+					+ ", \"path\": \"" + brick.folder() + "/\""
+					+ ", \"offset\": [" + brick.outputX + ", " + brick.outputY + ", " + brick.outputZ + "]"
+					+ ", \"size\": [" + brick.width() + ", " + brick.height() + ", " + brick.depth() + "]"
+					+ ", \"sourceOffset\": [" + brick.x + ", " + brick.y + ", " + brick.z + "]"
+					+ ", \"sourceSize\": [" + brick.sizeX + ", " + brick.sizeY + ", " + brick.sizeZ + "]";
+			if (brickLevels != null){
+				line += ", \"atlasLayout\": " + brickLevels.get(0).toJavaScript();
+				List<String> lods = new ArrayList<String>();
+				for (int level=1; level<brickLevels.size(); level++){
+					AtlasLayout layout = brickLevels.get(level);
+					lods.add("{\"path\": \"" + AtlasPyramid.levelFolder(level) + "/\", \"size\": [" + layout.sliceWidth + ", " + layout.sliceHeight + ", " + layout.numberOfImages + "]"
+							+ ", \"atlasLayout\": " + layout.toJavaScript() + "}");
+				}
+				line += ", \"levels\": [" + String.join(", ", lods) + "]";
+			}
+			lines.add(line + "}");
+		}
+		out.println(String.join(",\n", lines));
+		out.println("  ]");
+		out.println("}");
+		out.flush();
+		return json.toString();
+	}
+
+}
@@ -1,6 +1,9 @@
 package plugins.fantm.fpbioimagehelper;
 
 import java.io.BufferedInputStream;
+import java.io.File;
+
+import org.jets3t.service.Jets3tProperties;
 import org.jets3t.service.ServiceException;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.security.AWSCredentials;
@@ -8,15 +11,90 @@ import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 
 
 public class Bucket {
-	
+
+	// Set -Dfpb.s3.endpoint=host:port (and optionally fpb.s3.accessKey / fpb.s3.secretKey)
+	// to publish to a local S3-compatible stand-in instead of AWS, e.g. for testing uploads.
+	public static final String ENDPOINT_PROPERTY = "fpb.s3.endpoint";
+
+	// Set -Dfpb.storage.dir=folder to publish into a folder instead, with no S3 at all
+	public static final String STORAGE_DIR_PROPERTY = "fpb.storage.dir";
+
+	// Connections kept open to S3, shared by every upload. They are only opened when
+	// needed, so this just caps how many PUTs can be in flight at once.
+	public static final int MAX_CONNECTIONS = 32;
+
+	private static AWSCredentials credentials;
+	private static StorageClient storageClient;
+
+	// The client every export uploads through, made the first time it is needed. Null if
+	// it couldn't be made (the reason is printed), so that the next call tries again.
+	public static synchronized StorageClient getStorageClient(){
+		if (storageClient == null){
+			String storageDir = System.getProperty(STORAGE_DIR_PROPERTY);
+			if (storageDir != null){
+				storageClient = new LocalStorageClient(new File(storageDir));
+			} else {
+				S3Service s3Service = getS3Service();
+				storageClient = s3Service != null ? new S3StorageClient(s3Service) : null;
+			}
+		}
+		return storageClient;
+	}
+
 	public static S3Service getS3Service(){
 		S3Service s3Service = null;
-		try {	
-			s3Service = new RestS3Service( (AWSCredentials) AWSCredentials.load(FpBioimageHelper.bucketName, new BufferedInputStream(Bucket.class.getClassLoader().getResourceAsStream("org/jets3t/service/bucket.enc"))));
+		try {
+			AWSCredentials credentials = getCredentials();
+			String endpoint = System.getProperty(ENDPOINT_PROPERTY);
+			if (endpoint != null){
+				int colon = endpoint.lastIndexOf(':');
+				String host = colon < 0 ? endpoint : endpoint.substring(0, colon);
+				int port = colon < 0 ? 80 : Integer.parseInt(endpoint.substring(colon + 1));
+				s3Service = getS3Service(credentials, host, port, false);
+			} else {
+				s3Service = new RestS3Service(credentials, null, null, connectionProperties());
+			}
 		} catch (ServiceException e) {
 			e.printStackTrace();
+		} catch (NumberFormatException e) {
+			System.out.println(ENDPOINT_PROPERTY + " should be host or host:port, not " + System.getProperty(ENDPOINT_PROPERTY) + ", so there is no storage client.");
 		}
 		return s3Service;
 	}
 
-}
\ No newline at end of file
+	// Decrypting bucket.enc is slow, so it is only done once
+	public static synchronized AWSCredentials getCredentials() throws ServiceException {
+		String accessKey = System.getProperty("fpb.s3.accessKey");
+		String secretKey = System.getProperty("fpb.s3.secretKey");
+		if (accessKey != null && secretKey != null){
+			return new AWSCredentials(accessKey, secretKey);
+		}
+		if (credentials == null){
+			credentials = (AWSCredentials) AWSCredentials.load(FpBioimageHelper.bucketName, new BufferedInputStream(Bucket.class.getClassLoader().getResourceAsStream("org/jets3t/service/bucket.enc")));
+		}
+		return credentials;
+	}
+
+	// Service talking to any S3-compatible endpoint, with path-style bucket addressing
+	public static S3Service getS3Service(AWSCredentials credentials, String host, int port, boolean https){
+		Jets3tProperties properties = connectionProperties();
+		properties.setProperty("s3service.s3-endpoint", host);
+		properties.setProperty(https ? "s3service.s3-endpoint-https-port" : "s3service.s3-endpoint-http-port", Integer.toString(port));
+		properties.setProperty("s3service.https-only", Boolean.toString(https));
+		properties.setProperty("s3service.disable-dns-buckets", "true");
+		return new RestS3Service(credentials, null, null, properties);
+	}
+
+	// A keep-alive pool big enough for the uploaders' concurrent PUTs, which all go to the
+	// same host. Idle connections are checked before reuse, as S3 drops them. httpclient
+	// doesn't retry: S3StorageClient does, with backoff, and both would multiply attempts.
+	private static Jets3tProperties connectionProperties(){
+		Jets3tProperties properties = new Jets3tProperties();
+		properties.setProperty("httpclient.max-connections", Integer.toString(MAX_CONNECTIONS));
+		properties.setProperty("httpclient.max-connections-per-host", Integer.toString(MAX_CONNECTIONS));
+		properties.setProperty("httpclient.stale-checking-enabled", "true");
+		properties.setProperty("httpclient.retry-max", "0");
+		return properties;
+	}
+
+}
@@ -0,0 +1,119 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+import icy.image.IcyBufferedImage;
+
+public class CropBox {
+
+	// The part of a volume worth exporting: the bounding box of the voxels above a threshold
+	// in any channel, over every exported frame, grown by a margin. Everything outside it is
+	// background, which would only become fully transparent atlas pixels. Found in one pass
+	// over the slices, in parallel.
+
+	public final int x; public final int y; public final int z;
+	public final int sizeX; public final int sizeY; public final int sizeZ;
+
+	public CropBox(int x, int y, int z, int sizeX, int sizeY, int sizeZ){
+		this.x = x; this.y = y; this.z = z;
+		this.sizeX = sizeX; this.sizeY = sizeY; this.sizeZ = sizeZ;
+	}
+
+	// The box of frames timePoints of volume, or null if no voxel is above threshold
+	public static CropBox find(final Volume volume, List<Integer> timePoints, final double threshold, int margin){
+		final int sizeX = volume.getSizeX(); final int sizeY = volume.getSizeY(); final int sizeZ = volume.getSizeZ();
+		int[] box = null; // minX, maxX, minY, maxY, minZ, maxZ (inclusive)
+		for (final int t : timePoints){
+			final int frame = AtlasExporter.checkedTimePoint(volume, t);
+			int[] frameBox = IntStream.range(0, sizeZ).parallel()
+					.mapToObj(z -> sliceBox(volume.getImage(frame, z), z, sizeX, sizeY, threshold))
+					.reduce(null, CropBox::union);
+			box = union(box, frameBox);
+		}
+		if (box == null) return null;
+
+		int minX = Math.max(0, box[0] - margin); int maxX = Math.min(sizeX - 1, box[1] + margin);
+		int minY = Math.max(0, box[2] - margin); int maxY = Math.min(sizeY - 1, box[3] + margin);
+		int minZ = Math.max(0, box[4] - margin); int maxZ = Math.min(sizeZ - 1, box[5] + margin);
+		return new CropBox(minX, minY, minZ, maxX - minX + 1, maxY - minY + 1, maxZ - minZ + 1);
+	}
+
+	public static CropBox whole(Volume volume){
+		return new CropBox(0, 0, 0, volume.getSizeX(), volume.getSizeY(), volume.getSizeZ());
+	}
+
+	public boolean isWhole(Volume volume){
+		return x == 0 && y == 0 && z == 0 && sizeX == volume.getSizeX() && sizeY == volume.getSizeY() && sizeZ == volume.getSizeZ();
+	}
+
+	// Makes options export just this box
+	public void applyTo(ExportOptions options){
+		options.cropX = x; options.cropY = y; options.cropZ = z;
+		options.cropSizeX = sizeX; options.cropSizeY = sizeY; options.cropSizeZ = sizeZ;
+	}
+
+	// The box of slice z, or null if it is all background
+	private static int[] sliceBox(IcyBufferedImage slice, int z, int width, int height, double threshold){
+		boolean signed = slice.getDataType_().isSigned();
+		int[] box = null;
+		for (int c=0; c<slice.getSizeC(); c++){
+			Object data = slice.getDataXY(c);
+			for (int y=0; y<height; y++){
+				// Each row is read from both ends, up to the first voxel above threshold
+				int left = firstAbove(data, y * width, 0, width, signed, threshold);
+				if (left < 0) continue;
+				int right = lastAbove(data, y * width, left, width, signed, threshold);
+				if (box == null){
+					box = new int[] {left, right, y, y, z, z};
+				} else {
+					box[0] = Math.min(box[0], left); box[1] = Math.max(box[1], right);
+					box[2] = Math.min(box[2], y); box[3] = Math.max(box[3], y);
+				}
+			}
+		}
+		return box;
+	}
+
+	private static int[] union(int[] a, int[] b){
+		if (a == null) return b;
+		if (b == null) return a;
+		return new int[] {Math.min(a[0], b[0]), Math.max(a[1], b[1]), Math.min(a[2], b[2]), Math.max(a[3], b[3]), Math.min(a[4], b[4]), Math.max(a[5], b[5])};
+	}
+
+	// The first x in [from, to) of the row starting at rowStart whose value is above
+	// threshold, or -1
+	static int firstAbove(Object data, int rowStart, int from, int to, boolean signed, double threshold){
+		for (int x=from; x<to; x++){
+			if (value(data, rowStart + x, signed) > threshold) return x;
+		}
+		return -1;
+	}
+
+	// The last such x, or -1
+	static int lastAbove(Object data, int rowStart, int from, int to, boolean signed, double threshold){
+		for (int x=to-1; x>=from; x--){
+			if (value(data, rowStart + x, signed) > threshold) return x;
+		}
+		return -1;
+	}
+
+	static double value(Object data, int i, boolean signed){
+		if (data instanceof byte[]){
+			byte value = ((byte[]) data)[i];
+			return signed ? value : value & 0xFF;
+		} else if (data instanceof short[]){
+			short value = ((short[]) data)[i];
+			return signed ? value : value & 0xFFFF;
+		} else if (data instanceof int[]){
+			int value = ((int[]) data)[i];
+			return signed ? value : value & 0xFFFFFFFFL;
+		} else if (data instanceof float[]){
+			return ((float[]) data)[i];
+		} else if (data instanceof double[]){
+			return ((double[]) data)[i];
+		}
+		throw new IllegalArgumentException("Unsupported data type for cropping: " + data.getClass().getSimpleName());
+	}
+
+}
@@ -0,0 +1,296 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+
+import icy.image.IcyBufferedImage;
+import icy.image.colormap.IcyColorMap;
+import icy.image.lut.LUT;
+import icy.math.Scaler;
+
+public class ExportCache {
+
+	// Encoded atlases of earlier exports, kept on disk under a hash of everything they were
+	// made from: the frame's pixels and every option that changes the atlases. Re-exporting
+	// the same data (under another name, say) copies them back instead of redoing the
+	// work. Entries are folders, evicted least recently used first once the cache is over
+	// its size limit. What each export reuses, stores and evicts is counted in its report;
+	// the getters add up every export in this session.
+
+	public static final long DEFAULT_MAX_BYTES = 2L * 1024 * 1024 * 1024;
+	private static final String LEVELS_FILE = "levels.txt";
+
+	private static final Map<File, ExportCache> CACHES = new HashMap<File, ExportCache>();
+
+	private final File dir;
+	private volatile long maxBytes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong bytesReused = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	private ExportCache(File dir, long maxBytes){
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+	}
+
+	// One cache per folder, so the statistics add up over every export in this session
+	public static ExportCache forDirectory(File dir, long maxBytes){
+		File key = dir.getAbsoluteFile();
+		synchronized (CACHES){
+			ExportCache cache = CACHES.get(key);
+			if (cache == null){
+				cache = new ExportCache(key, maxBytes);
+				CACHES.put(key, cache);
+			}
+			cache.maxBytes = maxBytes;
+			return cache;
+		}
+	}
+
+	public static File defaultDirectory(){
+		return new File(new File(System.getProperty("user.home"), ".fpbioimagehelper"), "cache");
+	}
+
+	// The hash of brick of frame options.timePoint, and of everything else the atlases depend
+	// on. sharedConverter says whether the frame is rendered with a converter shared across
+	// frames (full range); otherwise a whole frame gets one fitted to it and a brick a full
+	// range one of its own, as AtlasExporter picks them.
+	public static String key(Volume volume, LUT viewerLut, ExportOptions options, BrickGrid.Brick brick, boolean sharedConverter){
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		// The options that change the atlases (not the name, voxel sizes only go in the webpage)
+		StringBuilder params = new StringBuilder();
+		params.append("scale=").append(options.scaleX).append(',').append(options.scaleY).append(',').append(options.scalesZ() ? options.scaleZ : 1.0)
+			.append(";inMemory=").append(!options.streams())
+			.append(";packing=").append(options.packing).append(',').append(options.numberOfAtlases).append(',').append(options.maxAtlasSize)
+			.append(";lod=").append(options.lodLevels)
+			.append(";format=").append(options.atlasFormat)
+			.append(";file=").append(options.fileType).append(',').append(options.jpegQuality).append(',').append(options.pngCompressionLevel).append(',').append(options.pngFilter)
+			.append(";converter=").append(sharedConverter || !brick.isWhole() ? "full" : "fitted")
+			.append(";brick=").append(brick.x).append(',').append(brick.y).append(',').append(brick.z)
+			.append(',').append(brick.sizeX).append(',').append(brick.sizeY).append(',').append(brick.sizeZ)
+			.append(',').append(brick.outputZ).append(',').append(brick.depth())
+			.append(";type=").append(volume.getDataType_()).append(',').append(volume.getSizeC());
+		for (int c=0; c<volume.getSizeC(); c++){
+			Scaler scaler = viewerLut.getScalers()[c];
+			IcyColorMap colormap = viewerLut.getLutChannel(c).getColorMap();
+			params.append(";lut").append(c).append('=').append(viewerLut.getLutChannel(c).isEnabled())
+				.append(',').append(scaler.getLeftIn()).append(',').append(scaler.getRightIn())
+				.append(',').append(scaler.getLeftOut()).append(',').append(scaler.getRightOut());
+			for (int i=0; i<IcyColorMap.SIZE; i++){
+				params.append(',').append(ArgbConverter.pack(colormap.getNormalizedAlpha(i), colormap.getNormalizedRed(i), colormap.getNormalizedGreen(i), colormap.getNormalizedBlue(i)));
+			}
+		}
+		digest.update(params.toString().getBytes(StandardCharsets.UTF_8));
+
+		int t = AtlasExporter.checkedTimePoint(volume, options.timePoint);
+		// Including the slice of the next brick its z resample reads
+		for (int z=0; z<brick.readDepth(); z++){
+			IcyBufferedImage slice = brick.slice(volume, t, z);
+			for (int c=0; c<slice.getSizeC(); c++){
+				update(digest, slice.getDataXY(c));
+			}
+		}
+		return Hex.encodeHexString(digest.digest());
+	}
+
+	private static void update(MessageDigest digest, Object data){
+		if (data instanceof byte[]){
+			digest.update((byte[]) data);
+			return;
+		}
+		ByteBuffer buffer;
+		if (data instanceof short[]){
+			buffer = ByteBuffer.allocate(2 * ((short[]) data).length);
+			buffer.asShortBuffer().put((short[]) data);
+		} else if (data instanceof int[]){
+			buffer = ByteBuffer.allocate(4 * ((int[]) data).length);
+			buffer.asIntBuffer().put((int[]) data);
+		} else if (data instanceof float[]){
+			buffer = ByteBuffer.allocate(4 * ((float[]) data).length);
+			buffer.asFloatBuffer().put((float[]) data);
+		} else if (data instanceof double[]){
+			buffer = ByteBuffer.allocate(8 * ((double[]) data).length);
+			buffer.asDoubleBuffer().put((double[]) data);
+		} else {
+			throw new IllegalArgumentException("Unsupported data type for hashing: " + data.getClass().getSimpleName());
+		}
+		digest.update(buffer.array());
+	}
+
+	// On a hit, copies the cached atlases into frameDir (reduced levels in their lod folders)
+	// named for options, and returns the layout of each level. Null on a miss.
+	public List<AtlasLayout> restore(String key, File frameDir, ExportOptions options, ExportReport report){
+		File entry = new File(dir, key);
+		File levelsFile = new File(entry, LEVELS_FILE);
+		synchronized (this){
+			if (!levelsFile.isFile()){
+				misses.incrementAndGet();
+				return null;
+			}
+			// Mark it used now, so eviction doesn't take it while we copy
+			entry.setLastModified(System.currentTimeMillis());
+		}
+
+		try {
+			List<AtlasLayout> levels = new ArrayList<AtlasLayout>();
+			for (String line : Files.readAllLines(levelsFile.toPath(), StandardCharsets.UTF_8)){
+				String[] size = line.trim().split(" ");
+				levels.add(AtlasLayout.forOptions(Integer.parseInt(size[0]), Integer.parseInt(size[1]), Integer.parseInt(size[2]), options));
+			}
+			long bytes = 0;
+			for (int level=0; level<levels.size(); level++){
+				File levelDir = levelDir(frameDir, level);
+				levelDir.mkdirs();
+				for (int i=0; i<levels.get(level).numberOfAtlases; i++){
+					File cached = new File(entry, level + "_" + i + "." + options.fileType);
+					File target = new File(levelDir, AtlasWriter.atlasFilename(options.uniqueName, i, options.fileType));
+					Files.copy(cached.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					bytes += cached.length();
+				}
+			}
+			hits.incrementAndGet();
+			bytesReused.addAndGet(bytes);
+			report.count("cacheBytesReused", bytes);
+			return levels;
+		} catch (IOException | RuntimeException e) {
+			// A damaged entry is just a miss
+			report.error("Atlas cache entry " + key + " could not be used", e);
+			misses.incrementAndGet();
+			delete(entry);
+			return null;
+		}
+	}
+
+	// Copies the atlases just written into frameDir into the cache, then evicts old entries
+	// if it is too big. Never fails the export: a failure is only noted in report.
+	public void store(String key, File frameDir, List<AtlasLayout> levels, ExportOptions options, ExportReport report){
+		File entry = new File(dir, key);
+		File partial = new File(dir, key + ".partial-" + Thread.currentThread().getId());
+		try {
+			partial.mkdirs();
+			StringBuilder levelsText = new StringBuilder();
+			for (int level=0; level<levels.size(); level++){
+				AtlasLayout layout = levels.get(level);
+				levelsText.append(layout.sliceWidth).append(' ').append(layout.sliceHeight).append(' ').append(layout.numberOfImages).append('\n');
+				for (int i=0; i<layout.numberOfAtlases; i++){
+					File written = new File(levelDir(frameDir, level), AtlasWriter.atlasFilename(options.uniqueName, i, options.fileType));
+					Files.copy(written.toPath(), new File(partial, level + "_" + i + "." + options.fileType).toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			// Written last, so an entry without it is never used
+			Files.write(new File(partial, LEVELS_FILE).toPath(), levelsText.toString().getBytes(StandardCharsets.UTF_8));
+
+			synchronized (this){
+				if (entry.exists()){
+					delete(partial); // stored by another export meanwhile
+				} else if (!partial.renameTo(entry)){
+					throw new IOException("Could not rename " + partial + " to " + entry);
+				}
+				entry.setLastModified(System.currentTimeMillis());
+				report.count("cacheEvictions", evict(entry));
+			}
+		} catch (IOException e) {
+			report.error("Could not add atlases to the cache", e);
+			delete(partial);
+		}
+	}
+
+	private static File levelDir(File frameDir, int level){
+		return level == 0 ? frameDir : new File(frameDir, AtlasPyramid.levelFolder(level));
+	}
+
+	// Deletes the least recently used entries (except keep) until the cache fits, and
+	// returns how many went
+	private int evict(File keep){
+		File[] entries = dir.listFiles(File::isDirectory);
+		if (entries == null) return 0;
+		long total = 0;
+		final Map<File, Long> lastUsed = new HashMap<File, Long>();
+		for (File entry : entries){
+			total += size(entry);
+			lastUsed.put(entry, entry.lastModified());
+		}
+		Arrays.sort(entries, (a, b) -> Long.compare(lastUsed.get(a), lastUsed.get(b)));
+		int evicted = 0;
+		for (File entry : entries){
+			if (total <= maxBytes) break;
+			if (entry.equals(keep) || entry.getName().contains(".partial-")) continue;
+			total -= size(entry);
+			delete(entry);
+			evicted++;
+		}
+		evictions.addAndGet(evicted);
+		return evicted;
+	}
+
+	private static long size(File entry){
+		long size = 0;
+		File[] files = entry.listFiles();
+		if (files != null){
+			for (File file : files) size += file.length();
+		}
+		return size;
+	}
+
+	private static void delete(File entry){
+		File[] files = entry.listFiles();
+		if (files != null){
+			for (File file : files) file.delete();
+		}
+		entry.delete();
+	}
+
+	public long getHits(){
+		return hits.get();
+	}
+
+	public long getMisses(){
+		return misses.get();
+	}
+
+	public long getBytesReused(){
+		return bytesReused.get();
+	}
+
+	public long getEvictions(){
+		return evictions.get();
+	}
+
+	public synchronized long getSize(){
+		long total = 0;
+		File[] entries = dir.listFiles(File::isDirectory);
+		if (entries != null){
+			for (File entry : entries) total += size(entry);
+		}
+		return total;
+	}
+
+	@Override
+	public String toString(){
+		return "Atlas cache " + dir + ": " + hits.get() + " hits, " + misses.get() + " misses, "
+				+ bytesReused.get() / 1024 + " KB reused, " + evictions.get() + " evicted";
+	}
+
+}
@@ -0,0 +1,152 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.io.File;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import icy.image.lut.LUT;
+import icy.sequence.Sequence;
+import icy.sequence.SequenceUtil;
+
+public class ExportEngine {
+
+	// Runs exports on background threads, so Icy stays responsive and several exports can
+	// run side by side. Everything that needs the user (the name, Z/T swap, whether and
+	// where to upload) is decided before a Job is submitted, so nothing prompts once it
+	// has started. Each submitted Job gets a Task: a future for the webpage, its progress,
+	// and cooperative cancellation.
+
+	public static final int DEFAULT_CONCURRENT_EXPORTS = 2;
+
+	public static class Job {
+		public final Sequence seq;
+		public final LUT viewerLut;
+		public final File saveDir;
+		public final ExportOptions options;
+
+		// Swap Z and T before exporting
+		public boolean swapZT = false;
+
+		// Where to upload (null to only save locally), and whether the engine shuts the
+		// uploader down when the job ends
+		public Uploader uploader = null;
+		public String keyPrefix = null;
+		public boolean shutdownUploader = false;
+
+		// Don't export, just upload what an earlier export into saveDir didn't manage to
+		public boolean uploadOnly = false;
+
+		public Job(Sequence seq, LUT viewerLut, File saveDir, ExportOptions options){
+			this.seq = seq;
+			this.viewerLut = viewerLut;
+			this.saveDir = saveDir;
+			this.options = options;
+		}
+	}
+
+	public static class Task {
+		public final Job job;
+		private final ExportReport report;
+		private final CompletableFuture<File> result = new CompletableFuture<File>();
+		private volatile double position = 0;
+		private volatile String message = "";
+
+		private Task(Job job, final ProgressListener listener){
+			this.job = job;
+			this.report = new ExportReport((position, message) -> {
+				this.position = position;
+				this.message = message;
+				if (listener != null) listener.progress(position, message);
+			});
+			// Cancelling the future cancels the export too
+			result.whenComplete((htmlFile, error) -> {
+				if (result.isCancelled()) report.cancel();
+			});
+		}
+
+		// Completes with the webpage, or exceptionally with the reason the export failed
+		// (a CancellationException if it was cancelled)
+		public CompletableFuture<File> getResult(){
+			return result;
+		}
+
+		// The export stops at the next stage or slice it starts; files already written stay
+		public void cancel(){
+			report.cancel();
+		}
+
+		public boolean isCancelled(){
+			return report.isCancelled();
+		}
+
+		public double getPosition(){
+			return position;
+		}
+
+		public String getMessage(){
+			return message;
+		}
+
+		public ExportReport getReport(){
+			return report;
+		}
+	}
+
+	private static ExportEngine defaultEngine;
+
+	private final ExecutorService executor;
+
+	public ExportEngine(int concurrentExports){
+		final AtomicInteger threads = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(concurrentExports, runnable -> {
+			Thread thread = new Thread(runnable, "FP Helper export " + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	// The engine shared by every plugin window
+	public static synchronized ExportEngine getDefault(){
+		if (defaultEngine == null){
+			defaultEngine = new ExportEngine(DEFAULT_CONCURRENT_EXPORTS);
+		}
+		return defaultEngine;
+	}
+
+	// Queues job; listener (which may be null) is called from the export's threads
+	public Task submit(final Job job, ProgressListener listener){
+		final Task task = new Task(job, listener);
+		executor.execute(() -> {
+			try {
+				task.report.checkCancelled();
+				if (job.uploadOnly){
+					task.result.complete(Exporter.resumeUpload(job.saveDir, job.uploader, job.keyPrefix, task.report));
+					return;
+				}
+				if (job.swapZT){
+					SequenceUtil.adjustZT(job.seq, job.seq.getSizeT(), job.seq.getSizeZ(), true);
+				}
+				Exporter.autoCrop(job.seq, job.options, task.report);
+				String sizeError = Exporter.checkSize(job.seq, job.options);
+				if (sizeError != null){
+					throw new IllegalArgumentException(sizeError);
+				}
+				task.result.complete(Exporter.export(job.seq, job.viewerLut, job.saveDir, job.options, job.uploader, job.keyPrefix, task.report));
+			} catch (Throwable e) {
+				task.result.completeExceptionally(task.isCancelled() ? new CancellationException("Export cancelled") : e);
+			} finally {
+				if (job.shutdownUploader && job.uploader != null) job.uploader.shutdown();
+			}
+		});
+		return task;
+	}
+
+	// Running exports carry on; nothing new starts
+	public void shutdown(){
+		executor.shutdown();
+	}
+
+}
@@ -0,0 +1,123 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ExportOptions implements Cloneable {
+
+	// Everything the export pipeline needs to know, independent of the EzPlug UI
+
+	public String uniqueName = "";
+
+	public int timePoint = 0;
+
+	// Export every timeStep-th frame from timeStart to timeEnd (inclusive, -1 for the last one)
+	// instead of just timePoint. Each frame gets its own folder, with one webpage for them all.
+	public boolean allTimePoints = false;
+	public int timeStart = 0;
+	public int timeEnd = -1;
+	public int timeStep = 1;
+
+	// Voxel size before scaling; only the x:y:z ratio matters to the viewer
+	public double voxelSizeX = 1.0;
+	public double voxelSizeY = 1.0;
+	public double voxelSizeZ = 1.0;
+
+	public double scaleX = 1.0;
+	public double scaleY = 1.0;
+	public double scaleZ = 1.0;
+
+	// Take one slice at a time through colour conversion, scaling and atlas placement
+	// instead of building whole intermediate sequences. Peak memory is then the atlases
+	// plus a few slices per worker.
+	public boolean streaming = false;
+
+	// Split volumes bigger than brickSize (after scaling) on any axis into bricks, each
+	// exported as its own atlas set in its own folder, described by a brick manifest
+	public boolean bricked = false;
+	public int brickSize = Exporter.MAX_SIZE;
+
+	// Export only the bounding box of the voxels above cropThreshold (in data units, in any
+	// channel, over every exported frame) grown by cropMargin voxels, so empty space doesn't
+	// end up in the atlases. The box is found before the export, and set as the crop below.
+	public boolean autoCrop = false;
+	public double cropThreshold = 0;
+	public int cropMargin = 2;
+
+	// The part of the volume exported, in source voxels. All of it while cropSizeX is 0.
+	public int cropX = 0; public int cropY = 0; public int cropZ = 0;
+	public int cropSizeX = 0; public int cropSizeY = 0; public int cropSizeZ = 0;
+
+	// Reuse the encoded atlases of an identical earlier export (whatever its name) from
+	// this folder, null for no cache. Least recently used entries go past cacheMaxBytes.
+	public File cacheDir = null;
+	public long cacheMaxBytes = ExportCache.DEFAULT_MAX_BYTES;
+
+	// How slices are packed into the atlases, and into how many. POWER_OF_TWO is the
+	// layout older viewers expect; TIGHT atlases are at most maxAtlasSize on a side.
+	public AtlasLayout.Packing packing = AtlasLayout.Packing.POWER_OF_TWO;
+	public int numberOfAtlases = AtlasLayout.DEFAULT_NUMBER_OF_ATLASES;
+	public int maxAtlasSize = AtlasLayout.DEFAULT_MAX_ATLAS_SIZE;
+
+	// Reduced resolution atlas sets to add, each half the size of the last in x, y and z,
+	// so a viewer can show a coarse level first
+	public int lodLevels = 0;
+
+	// AUTO writes single-channel data (or data with a single visible channel) as palette
+	// atlases, a quarter the size of ARGB ones
+	public AtlasComposer.Format atlasFormat = AtlasComposer.Format.AUTO;
+
+	// Atlas file type, one of AtlasEncoders.fileTypes(). JPEG quality runs from 0 to 1.
+	public String fileType = "png";
+	public float jpegQuality = 0.85f;
+
+	// Deflate level for the atlas PNGs: 1 is fastest, 9 smallest
+	public int pngCompressionLevel = 6;
+	public PngEncoder.Filter pngFilter = PngEncoder.Filter.ADAPTIVE;
+
+	public boolean scalesZ(){
+		// Anything closer to 1 than this isn't worth resampling
+		return scaleZ < 0.999;
+	}
+
+	// Cropping and bricking take one slice at a time, cutting each down as it is read
+	public boolean streams(){
+		return streaming || bricked || autoCrop || isCropped();
+	}
+
+	public boolean isCropped(){
+		return cropSizeX > 0;
+	}
+
+	// The frames to export from a sequence with sizeT time points
+	public List<Integer> timePoints(int sizeT){
+		List<Integer> timePoints = new ArrayList<Integer>();
+		if (!allTimePoints){
+			timePoints.add(timePoint);
+			return timePoints;
+		}
+		int end = (timeEnd < 0 || timeEnd >= sizeT) ? sizeT - 1 : timeEnd;
+		for (int t=Math.max(0, timeStart); t<=end; t+=Math.max(1, timeStep)){
+			timePoints.add(t);
+		}
+		return timePoints;
+	}
+
+	public ExportOptions copy(){
+		try {
+			return (ExportOptions) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	// A copy of these options exporting just frame t
+	public ExportOptions forTimePoint(int t){
+		ExportOptions copy = copy();
+		copy.timePoint = t;
+		copy.allTimePoints = false;
+		return copy;
+	}
+
+}
@@ -0,0 +1,325 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CancellationException;
+
+import icy.sequence.Sequence;
+
+public class ExportReport {
+
+	// Timings of every stage of an export (wall time, bytes in and out, change in used heap,
+	// and any failure), written as JSON next to the webpage. Completed stages also move the
+	// progress bar: each stage counts for its weight out of the work planned with expect().
+	// Stages run concurrently and on pooled threads, and the collector runs whenever it
+	// likes, so a stage's heap change is only used heap at its end minus at its start (it
+	// can be negative), not its peak or its own allocations. peakHeapBytes is the most
+	// used heap seen at any stage's end. The report also carries cancellation: once
+	// cancel() is called, starting any stage throws a CancellationException.
+
+	public static final String FILENAME = "export-report.json";
+
+	public static final String CROP = "findCrop";
+	public static final String CACHE = "cacheLookup";
+	public static final String STAGE = "stageToDisk";
+	public static final String EXTRACT_FRAME = "extractFrame";
+	public static final String CONVERT_COLOR = "convertColor";
+	public static final String SCALE_XY = "scaleXY";
+	public static final String SCALE_Z = "scaleZ";
+	public static final String COMPOSE = "atlasCompose";
+	public static final String DOWNSAMPLE = "lodDownsample";
+	public static final String ENCODE = "atlasEncode";
+	public static final String RENDER_TEMPLATE = "templateRender";
+	public static final String UPLOAD = "s3Put";
+
+	// Rough relative cost of each stage, only used to place the progress bar
+	private static final Map<String, Double> WEIGHTS = new LinkedHashMap<String, Double>();
+	static {
+		WEIGHTS.put(CROP, 1.0);
+		WEIGHTS.put(CACHE, 0.5);
+		WEIGHTS.put(STAGE, 2.0);
+		WEIGHTS.put(EXTRACT_FRAME, 1.0);
+		WEIGHTS.put(CONVERT_COLOR, 2.0);
+		WEIGHTS.put(SCALE_XY, 2.0);
+		WEIGHTS.put(SCALE_Z, 2.0);
+		WEIGHTS.put(COMPOSE, 3.0);
+		WEIGHTS.put(DOWNSAMPLE, 1.0);
+		WEIGHTS.put(ENCODE, 1.0);
+		WEIGHTS.put(RENDER_TEMPLATE, 0.1);
+		WEIGHTS.put(UPLOAD, 1.0);
+	}
+
+	private static final Map<String, String> LABELS = new LinkedHashMap<String, String>();
+	static {
+		LABELS.put(CROP, "Finding the empty space to crop");
+		LABELS.put(CACHE, "Checking the atlas cache");
+		LABELS.put(STAGE, "Staging frames to disk");
+		LABELS.put(EXTRACT_FRAME, "Extracting frame");
+		LABELS.put(CONVERT_COLOR, "Converting colours");
+		LABELS.put(SCALE_XY, "Scaling in XY");
+		LABELS.put(SCALE_Z, "Scaling in Z");
+		LABELS.put(COMPOSE, "Composing texture atlases");
+		LABELS.put(DOWNSAMPLE, "Building reduced resolutions");
+		LABELS.put(ENCODE, "Saving images");
+		LABELS.put(RENDER_TEMPLATE, "Making the webpage");
+		LABELS.put(UPLOAD, "Uploading to FP Host");
+	}
+
+	// Start one with try-with-resources, so it is recorded even if what it times throws
+	public class Stage implements AutoCloseable {
+		public final String name; public final String detail;
+		private final String thread;
+		private final long startNanos;
+		private final long heapBefore;
+		private long wallNanos;
+		private long bytesIn; private long bytesOut;
+		private long heapChange;
+		private String error;
+		private boolean recorded = false;
+
+		private Stage(String name, String detail){
+			this.name = name; this.detail = detail;
+			this.thread = Thread.currentThread().getName();
+			this.heapBefore = usedHeap();
+			this.startNanos = System.nanoTime();
+		}
+
+		public Stage bytesIn(long bytes){
+			bytesIn = bytes;
+			return this;
+		}
+
+		public Stage bytesOut(long bytes){
+			bytesOut = bytes;
+			return this;
+		}
+
+		public void end(){
+			if (recorded) return;
+			recorded = true;
+			wallNanos = System.nanoTime() - startNanos;
+			long heapAfter = usedHeap();
+			heapChange = heapAfter - heapBefore;
+			finished(this, heapAfter);
+		}
+
+		public void fail(Throwable cause){
+			if (recorded) return;
+			error = String.valueOf(cause);
+			end();
+		}
+
+		// Records the stage as failed unless end() or fail() already recorded it
+		@Override
+		public void close(){
+			if (recorded) return;
+			error = "did not finish";
+			end();
+		}
+	}
+
+	private final long startNanos = System.nanoTime();
+	private final long startTime = System.currentTimeMillis();
+	private final ProgressListener listener;
+
+	private final List<Stage> stages = new ArrayList<Stage>();
+	private final List<String> errors = new ArrayList<String>();
+	private final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+	private double plannedWork = 0;
+	private double doneWork = 0;
+	private long peakHeap = usedHeap();
+	private volatile boolean cancelled = false;
+
+	// listener may be null
+	public ExportReport(ProgressListener listener){
+		this.listener = listener;
+	}
+
+	public ExportReport(){
+		this(null);
+	}
+
+	// Plans count more runs of stage name for the progress bar
+	public synchronized void expect(String name, int count){
+		plannedWork += weight(name) * count;
+	}
+
+	public Stage start(String name, String detail){
+		checkCancelled();
+		return new Stage(name, detail);
+	}
+
+	// Asks the export to stop at the next stage (or slice) it starts
+	public void cancel(){
+		cancelled = true;
+	}
+
+	public boolean isCancelled(){
+		return cancelled;
+	}
+
+	public void checkCancelled(){
+		if (cancelled) throw new CancellationException("Export cancelled");
+	}
+
+	// Progress that isn't a stage finishing (the start and end of the export)
+	public void progress(double position, String message){
+		if (listener != null) listener.progress(position, message);
+	}
+
+	// Counts for the planned runs of stage name that turned out not to be needed (their
+	// result came from the cache, say)
+	public void skip(String name, int count){
+		double position;
+		synchronized (this){
+			doneWork += weight(name) * count;
+			position = plannedWork > 0 ? Math.min(1.0, doneWork / plannedWork) : 0;
+		}
+		if (listener != null && count > 0){
+			listener.progress(position, "FP Helper: " + LABELS.get(name) + "...");
+		}
+	}
+
+	// Adds delta to a named counter (cache hits, say), reported alongside the stages
+	public synchronized void count(String name, long delta){
+		Long count = counters.get(name);
+		counters.put(name, (count != null ? count : 0) + delta);
+	}
+
+	// A failure that isn't tied to one stage
+	public synchronized void error(String message, Throwable cause){
+		errors.add(message + (cause != null ? ": " + cause : ""));
+	}
+
+	private void finished(Stage stage, long heapAfter){
+		double position;
+		synchronized (this){
+			stages.add(stage);
+			if (stage.error != null) errors.add(stage.name + (stage.detail != null ? " " + stage.detail : "") + ": " + stage.error);
+			peakHeap = Math.max(peakHeap, heapAfter);
+			doneWork += weight(stage.name);
+			position = plannedWork > 0 ? Math.min(1.0, doneWork / plannedWork) : 0;
+		}
+		if (listener != null){
+			listener.progress(position, "FP Helper: " + LABELS.get(stage.name) + "...");
+		}
+	}
+
+	public synchronized List<String> getErrors(){
+		return new ArrayList<String>(errors);
+	}
+
+	public static long bytes(Sequence seq){
+		return bytes(Volume.of(seq));
+	}
+
+	public static long bytes(Volume volume){
+		return (long) volume.getSizeX() * volume.getSizeY() * volume.getSizeZ() * volume.getSizeC() * volume.getDataType_().getSize();
+	}
+
+	private static double weight(String name){
+		Double weight = WEIGHTS.get(name);
+		return weight != null ? weight : 1.0;
+	}
+
+	private static long usedHeap(){
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public void writeJson(File file) throws IOException {
+		Files.write(file.toPath(), toJson().getBytes(StandardCharsets.UTF_8));
+	}
+
+	public synchronized String toJson(){
+		StringWriter json = new StringWriter();
+		PrintWriter out = new PrintWriter(json);
+		SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		out.println("{");
+		out.println("  \"started\": " + quote(iso.format(new Date(startTime))) + ",");
+		out.println("  \"wallMillis\": " + millis(System.nanoTime() - startNanos) + ",");
+		out.println("  \"peakHeapBytes\": " + peakHeap + ",");
+
+		// Totals per stage, in pipeline order
+		out.println("  \"totals\": {");
+		List<String> lines = new ArrayList<String>();
+		for (String name : WEIGHTS.keySet()){
+			int count = 0; long wall = 0; long in = 0; long outBytes = 0;
+			for (Stage stage : stages){
+				if (!stage.name.equals(name)) continue;
+				count++; wall += stage.wallNanos; in += stage.bytesIn; outBytes += stage.bytesOut;
+			}
+			if (count > 0){
+				lines.add("    " + quote(name) + ": {\"count\": " + count + ", \"wallMillis\": " + millis(wall) + ", \"bytesIn\": " + in + ", \"bytesOut\": " + outBytes + "}");
+			}
+		}
+		out.println(String.join(",\n", lines));
+		out.println("  },");
+
+		out.println("  \"counters\": {");
+		lines.clear();
+		for (Map.Entry<String, Long> counter : counters.entrySet()){
+			lines.add("    " + quote(counter.getKey()) + ": " + counter.getValue());
+		}
+		out.println(String.join(",\n", lines));
+		out.println("  },");
+
+		out.println("  \"stages\": [");
+		lines.clear();
+		for (Stage stage : stages){
+			lines.add("    {\"stage\": " + quote(stage.name) + ", \"detail\": " + quote(stage.detail) + ", \"thread\": " + quote(stage.thread)
+					+ ", \"startMillis\": " + millis(stage.startNanos - startNanos) + ", \"wallMillis\": " + millis(stage.wallNanos)
+					+ ", \"bytesIn\": " + stage.bytesIn + ", \"bytesOut\": " + stage.bytesOut + ", \"heapChangeBytes\": " + stage.heapChange
+					+ ", \"error\": " + quote(stage.error) + "}");
+		}
+		out.println(String.join(",\n", lines));
+		out.println("  ],");
+
+		out.println("  \"errors\": [");
+		lines.clear();
+		for (String error : errors) lines.add("    " + quote(error));
+		out.println(String.join(",\n", lines));
+		out.println("  ]");
+		out.println("}");
+		out.flush();
+		return json.toString();
+	}
+
+	private static String millis(long nanos){
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+	private static String quote(String s){
+		if (s == null) return "null";
+		StringBuilder quoted = new StringBuilder(s.length() + 2).append('"');
+		for (int i=0; i<s.length(); i++){
+			char ch = s.charAt(i);
+			switch (ch){
+			case '"': quoted.append("\\\""); break;
+			case '\\': quoted.append("\\\\"); break;
+			case '\n': quoted.append("\\n"); break;
+			case '\r': quoted.append("\\r"); break;
+			case '\t': quoted.append("\\t"); break;
+			default:
+				if (ch < 0x20) quoted.append(String.format("\\u%04x", (int) ch));
+				else quoted.append(ch);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+}
@@ -0,0 +1,422 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import icy.image.lut.LUT;
+import icy.sequence.Sequence;
+
+public class Exporter {
+
+	// The whole export of one sequence (atlases, webpage and optional upload) without any
+	// UI, so it can run from the plugin, a batch job or the command line alike.
+
+	public static final int MAX_SIZE = 500;
+
+	// Frames of a time series exported at once. Each already composes its slices on all
+	// cores; more in flight mostly overlaps encoding and uploads, at the cost of memory.
+	public static final int FRAME_WORKERS = 3;
+
+	private static final Pattern SPECIAL = Pattern.compile ("[!@#£$%&*()+=|<>?{}\\[\\]~.,\\s]");
+
+	// Writes everything into saveDir and, if uploader isn't null, uploads it under keyPrefix.
+	// A time series export puts each frame's atlases in its own t<NNNN> folder, next to
+	// a single webpage. A bricked export puts each brick's atlases in its own folder
+	// inside that, with the brick manifest next to the webpage. The timings of every
+	// stage go to export-report.json in saveDir (which isn't uploaded) and drive the
+	// listener. Uploads are recorded in saveDir's UploadJournal, so a failed upload can
+	// be resumed. Returns the webpage file.
+	public static File export(Sequence seq, LUT viewerLut, File saveDir, ExportOptions exportOptions, Uploader uploader, String keyPrefix, ProgressListener listener) throws IOException {
+		return export(seq, viewerLut, saveDir, exportOptions, uploader, keyPrefix, new ExportReport(listener));
+	}
+
+	// Reports to report, and stops with a CancellationException soon after it is cancelled
+	public static File export(Sequence seq, LUT viewerLut, File saveDir, ExportOptions exportOptions, Uploader uploader, String keyPrefix, ExportReport report) throws IOException {
+		return export(Volume.of(seq), viewerLut, saveDir, exportOptions, uploader, keyPrefix, report);
+	}
+
+	// A volume that can only be read a slice at a time (a MappedVolume) is streamed
+	public static File export(final Volume volume, final LUT viewerLut, final File saveDir, ExportOptions exportOptions, final Uploader uploader, final String keyPrefix, final ExportReport report) throws IOException {
+		final ExportOptions options = AtlasExporter.resolveFormat(volume, viewerLut, exportOptions, report);
+		if (volume.getSequence() == null) options.streaming = true;
+		autoCrop(volume, options, report);
+		final String uniqueName = options.uniqueName;
+		final List<Integer> timePoints = options.timePoints(volume.getSizeT());
+		final boolean timeSeries = options.allTimePoints;
+		if (timePoints.isEmpty()){
+			throw new IOException("No time points to export between " + options.timeStart + " and " + options.timeEnd);
+		}
+
+		final BrickGrid grid = BrickGrid.forOptions(volume, options);
+		final List<BrickGrid.Brick> bricks = grid.getBricks();
+		final boolean bricked = options.bricked;
+
+		report.progress(0, "FP Helper: Composing texture atlases...");
+		int atlasSets = timePoints.size() * bricks.size();
+		for (int i=0; i<atlasSets; i++){
+			AtlasExporter.expectStages(options, report);
+		}
+		report.expect(ExportReport.DOWNSAMPLE, atlasSets * options.lodLevels);
+		int atlasFiles = atlasSets * options.numberOfAtlases * (1 + options.lodLevels);
+		report.expect(ExportReport.ENCODE, atlasFiles);
+		report.expect(ExportReport.RENDER_TEMPLATE, 1);
+		if (uploader != null){
+			report.expect(ExportReport.UPLOAD, atlasFiles + (bricked ? 2 : 1));
+		}
+		final ExportCache cache = options.cacheDir != null ? ExportCache.forDirectory(options.cacheDir, options.cacheMaxBytes) : null;
+		if (cache != null){
+			report.expect(ExportReport.CACHE, atlasSets);
+		}
+		// Files already published by an earlier, unfinished run aren't sent again
+		final UploadJournal journal = uploader != null ? UploadJournal.open(saveDir, uploader.getBucketName(), keyPrefix) : null;
+
+		// Work out the LUT and scalers once, so every frame and brick is rendered the same way.
+		// A single unbricked ARGB frame is left to AtlasExporter, which fits the LUT to its colours.
+		final ArgbConverter sharedConverter = timeSeries || grid.isBricked() || options.atlasFormat == AtlasComposer.Format.PALETTE ? AtlasExporter.createSharedConverter(volume, viewerLut, options.forTimePoint(timePoints.get(0))) : null;
+
+		final ExecutorService encodeExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		final ExecutorService frameExecutor = Executors.newFixedThreadPool(Math.min(atlasSets, FRAME_WORKERS));
+		final List<CompletableFuture<?>> uploads = Collections.synchronizedList(new ArrayList<CompletableFuture<?>>());
+		try {
+			// Convert, scale and order each frame (or each brick of each frame) into texture
+			// atlases, then save them, all encoded at once. Each one is uploaded as soon as it
+			// is written. The reduced resolution levels are built from the atlases while those
+			// are encoded.
+			List<CompletableFuture<List<AtlasLayout>>> frames = new ArrayList<CompletableFuture<List<AtlasLayout>>>();
+			for (final int t : timePoints){
+				for (final BrickGrid.Brick brick : bricks) frames.add(CompletableFuture.supplyAsync(() -> {
+					String folder = timeSeries ? frameFolder(t) : null;
+					if (bricked) folder = folder == null ? brick.folder() : folder + "/" + brick.folder();
+					File frameDir = folder == null ? saveDir : new File(saveDir, folder);
+					String frameKeyPrefix = folder == null ? keyPrefix : keyPrefix + "/" + folder;
+					String detail = "t" + t + (bricked ? " " + brick.folder() : "");
+
+					// Identical atlases from an earlier export just need copying (and uploading)
+					String cacheKey = null;
+					if (cache != null){
+						List<AtlasLayout> cached;
+						try (ExportReport.Stage stage = report.start(ExportReport.CACHE, detail).bytesIn(brick.bytes(volume))) {
+							cacheKey = ExportCache.key(volume, viewerLut, options.forTimePoint(t), brick, sharedConverter != null);
+							cached = cache.restore(cacheKey, frameDir, options, report);
+							stage.end();
+						}
+						report.count(cached != null ? "cacheHits" : "cacheMisses", 1);
+						if (cached != null){
+							report.skip(ExportReport.COMPOSE, 1);
+							report.skip(ExportReport.DOWNSAMPLE, options.lodLevels);
+							report.skip(ExportReport.ENCODE, options.numberOfAtlases * (1 + options.lodLevels));
+							for (int level=0; level<cached.size() && uploader != null; level++){
+								File levelDir = level == 0 ? frameDir : new File(frameDir, AtlasPyramid.levelFolder(level));
+								String levelKeyPrefix = level == 0 ? frameKeyPrefix : frameKeyPrefix + "/" + AtlasPyramid.levelFolder(level);
+								for (int i=0; i<cached.get(level).numberOfAtlases; i++){
+									String name = AtlasWriter.atlasFilename(uniqueName, i, options.fileType);
+									uploads.add(uploader.upload(new File(levelDir, name), levelKeyPrefix + "/" + name, report, journal));
+								}
+							}
+							return cached;
+						}
+					}
+
+					AtlasSet atlasSet = AtlasExporter.export(volume, viewerLut, options.forTimePoint(t), sharedConverter, report, brick);
+
+					List<AtlasLayout> levels = new ArrayList<AtlasLayout>();
+					List<CompletableFuture<File>> written = new ArrayList<CompletableFuture<File>>();
+					for (int level=0; atlasSet != null; level++){
+						levels.add(atlasSet.layout);
+						File levelDir = level == 0 ? frameDir : new File(frameDir, AtlasPyramid.levelFolder(level));
+						String levelKeyPrefix = level == 0 ? frameKeyPrefix : frameKeyPrefix + "/" + AtlasPyramid.levelFolder(level);
+
+						CompletableFuture<File>[] levelWritten = AtlasWriter.writeAsync(atlasSet.atlases, levelDir, uniqueName, options, encodeExecutor, report);
+						for (int i=0; i<levelWritten.length; i++){
+							written.add(levelWritten[i]);
+							if (uploader != null){
+								uploads.add(uploader.upload(levelWritten[i], levelKeyPrefix + "/" + AtlasWriter.atlasFilename(uniqueName, i, options.fileType), report, journal));
+							}
+						}
+
+						if (level == options.lodLevels) break;
+						try (ExportReport.Stage stage = report.start(ExportReport.DOWNSAMPLE, detail + " " + AtlasPyramid.levelFolder(level + 1)).bytesIn(atlasSet.bytes())) {
+							atlasSet = AtlasPyramid.downsample(atlasSet, options);
+							stage.bytesOut(atlasSet != null ? atlasSet.bytes() : 0).end();
+						}
+					}
+					// Hold this worker until its atlases are encoded, so only a few frames' atlases are in memory
+					CompletableFuture.allOf(written.toArray(new CompletableFuture<?>[written.size()])).join();
+					if (cache != null){
+						cache.store(cacheKey, frameDir, levels, options, report);
+					}
+					return levels;
+				}, frameExecutor));
+			}
+
+			// The layouts of each brick, from the first frame that exported
+			IOException failure = null;
+			Map<BrickGrid.Brick, List<AtlasLayout>> brickLevels = new HashMap<BrickGrid.Brick, List<AtlasLayout>>();
+			for (int i=0; i<frames.size(); i++){
+				BrickGrid.Brick brick = bricks.get(i % bricks.size());
+				try {
+					List<AtlasLayout> levels = frames.get(i).join();
+					if (!brickLevels.containsKey(brick)) brickLevels.put(brick, levels);
+				} catch (CompletionException e) {
+					e.printStackTrace();
+					String what = "Frame " + timePoints.get(i / bricks.size()) + (bricked ? " " + brick.folder() : "");
+					report.error(what + " could not be exported", e.getCause());
+					if (failure == null) failure = new IOException("Some frames could not be exported", e.getCause());
+				}
+			}
+
+			report.checkCancelled();
+
+			List<AtlasLayout> levels = brickLevels.get(bricks.get(0));
+			if (levels != null){
+				// And now just make the webpage!
+				List<String> folders = new ArrayList<String>();
+				if (timeSeries){
+					for (int t : timePoints) folders.add(frameFolder(t));
+				}
+				File htmlFile = new File(saveDir.getCanonicalFile(), "index.html");
+				writeWebpage(htmlFile, levels, options, folders, report);
+
+				if (bricked){
+					File manifest = new File(saveDir.getCanonicalFile(), BrickGrid.MANIFEST);
+					grid.writeManifest(manifest, brickLevels, folders);
+					if (uploader != null){
+						uploads.add(uploader.upload(manifest, keyPrefix + "/" + BrickGrid.MANIFEST, report, journal));
+					}
+				}
+
+				if (uploader != null){
+					uploads.add(uploader.upload(htmlFile, keyPrefix + "/index.html", report, journal));
+				}
+
+				// Wait for the remaining uploads
+				List<CompletableFuture<?>> remaining;
+				synchronized (uploads){
+					remaining = new ArrayList<CompletableFuture<?>>(uploads);
+				}
+				for (CompletableFuture<?> future : remaining){
+					try {
+						future.join();
+					} catch (CompletionException e) {
+						e.printStackTrace();
+						if (failure == null){
+							failure = new IOException("Some files could not be " + (uploader != null ? "saved or uploaded" : "saved"), e.getCause());
+						}
+					}
+				}
+				report.checkCancelled();
+				if (failure != null) throw failure;
+
+				report.progress(1.0, "FP Helper: Done");
+				return htmlFile;
+			}
+			throw failure;
+		} finally {
+			frameExecutor.shutdown();
+			encodeExecutor.shutdown();
+			if (cache != null){
+				report.count("cacheBytes", cache.getSize());
+			}
+			if (journal != null){
+				journal.close();
+			}
+			writeReport(report, saveDir);
+		}
+	}
+
+	// Uploads what an earlier export into saveDir didn't manage to, according to its upload
+	// journal, without exporting anything again. Only possible if that export finished
+	// writing its files (so its webpage is in the journal). Returns the webpage file.
+	public static File resumeUpload(File saveDir, Uploader uploader, String keyPrefix, ExportReport report) throws IOException {
+		try (UploadJournal journal = UploadJournal.open(saveDir, uploader.getBucketName(), keyPrefix)) {
+			if (!journal.contains(keyPrefix + "/index.html")){
+				throw new IOException("The export into " + saveDir + " didn't finish, so it has to be run again");
+			}
+			report.progress(0, "FP Helper: Uploading missing files...");
+			report.expect(ExportReport.UPLOAD, journal.pending().size());
+			List<CompletableFuture<String>> uploads = uploader.resume(journal, report);
+
+			IOException failure = null;
+			for (CompletableFuture<String> future : uploads){
+				try {
+					future.join();
+				} catch (CompletionException e) {
+					e.printStackTrace();
+					if (failure == null) failure = new IOException("Some files could not be uploaded", e.getCause());
+				}
+			}
+			report.checkCancelled();
+			if (failure != null) throw failure;
+
+			report.progress(1.0, "FP Helper: Done");
+			return new File(saveDir.getCanonicalFile(), "index.html");
+		}
+	}
+
+	// Failing to write the report mustn't hide how the export itself went
+	private static void writeReport(ExportReport report, File saveDir){
+		try {
+			saveDir.mkdirs();
+			report.writeJson(new File(saveDir, ExportReport.FILENAME));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Sets the crop of options to the box of the volume with anything in it, if options.autoCrop
+	// and it has no crop yet. If nothing is above the threshold, the whole volume is kept.
+	public static void autoCrop(Sequence seq, ExportOptions options, ExportReport report){
+		autoCrop(Volume.of(seq), options, report);
+	}
+
+	public static void autoCrop(Volume volume, ExportOptions options, ExportReport report){
+		if (!options.autoCrop || options.isCropped()) return;
+		List<Integer> timePoints = options.timePoints(volume.getSizeT());
+		CropBox box;
+		try (ExportReport.Stage stage = report.start(ExportReport.CROP, null).bytesIn(ExportReport.bytes(volume) / Math.max(1, volume.getSizeT()) * timePoints.size())) {
+			box = CropBox.find(volume, timePoints, options.cropThreshold, options.cropMargin);
+			if (box == null){
+				System.out.println("Nothing in " + options.uniqueName + " is above the crop threshold (" + options.cropThreshold + "), so none of it is cropped.");
+				box = CropBox.whole(volume);
+			}
+			box.applyTo(options);
+			stage.end();
+		}
+		report.count("croppedVoxels", (long) volume.getSizeX() * volume.getSizeY() * volume.getSizeZ() - (long) box.sizeX * box.sizeY * box.sizeZ);
+	}
+
+	// Folder holding frame t of a time series export, relative to the webpage
+	public static String frameFolder(int t){
+		return String.format("t%04d", t);
+	}
+
+	// Null if the sequence can be exported with these scales, otherwise the reason why not.
+	// A bricked export only needs each brick to be within the limit, a cropped one only
+	// its crop (found now, if it hasn't been yet).
+	public static String checkSize(Sequence seq, ExportOptions options){
+		return checkSize(Volume.of(seq), options);
+	}
+
+	public static String checkSize(Volume volume, ExportOptions options){
+		if (options.bricked && (options.brickSize < 1 || options.brickSize > MAX_SIZE)){
+			return "Brick size must be between 1 and " + MAX_SIZE + ".";
+		}
+		if (options.autoCrop && !options.isCropped()){
+			options = options.copy();
+			autoCrop(volume, options, new ExportReport());
+		}
+		String[] axes = {"X", "Y", "Z"};
+		int sizeX = options.isCropped() ? options.cropSizeX : volume.getSizeX();
+		int sizeY = options.isCropped() ? options.cropSizeY : volume.getSizeY();
+		int sizeZ = options.isCropped() ? options.cropSizeZ : volume.getSizeZ();
+		double[] sizes = {sizeX * options.scaleX, sizeY * options.scaleY, sizeZ * options.scaleZ};
+		for (int i=0; i<3; i++){
+			if (sizes[i] > MAX_SIZE && !options.bricked){
+				return "Maximum X, Y or Z size after scaling is " + MAX_SIZE + ". Please check " + axes[i] + " dimension, or export in bricks.";
+			}
+		}
+		// The first brick is the largest
+		BrickGrid.Brick brick = BrickGrid.forOptions(volume, options).getBricks().get(0);
+		try {
+			AtlasLayout.forOptions(brick.width(), brick.height(), brick.depth(), options);
+		} catch (IllegalArgumentException e) {
+			return e.getMessage();
+		}
+		return null;
+	}
+
+	// Unique names can't contain spaces or special characters, with minimum length 4
+	public static boolean isValidName(String name){
+		return name != null && name.length() >= 4 && !SPECIAL.matcher(name).find();
+	}
+
+	// Replaces anything not allowed in a unique name, padding short names
+	public static String sanitizeName(String name){
+		String clean = SPECIAL.matcher(name == null ? "" : name).replaceAll("_");
+		while (clean.length() < 4){
+			clean = clean + "_";
+		}
+		return clean;
+	}
+
+	// frameFolders lists the folder of each frame of a time series (empty for a single frame)
+	public static void writeWebpage(File htmlFile, AtlasLayout layout, ExportOptions options, List<String> frameFolders) throws IOException {
+		writeWebpage(htmlFile, Collections.singletonList(layout), options, frameFolders, new ExportReport());
+	}
+
+	// levels holds the full resolution layout followed by any reduced resolution ones
+	public static void writeWebpage(File htmlFile, List<AtlasLayout> levels, ExportOptions options, List<String> frameFolders, ExportReport report) throws IOException {
+		String uniqueName = options.uniqueName;
+		AtlasLayout layout = levels.get(0);
+
+		// The images are in the same folder, or the first frame's folder for a time series.
+		// A bricked export shows the first brick, for viewers that don't read the manifest.
+		String brick = options.bricked ? "/" + BrickGrid.folder(0, 0, 0) : "";
+		String relativePathToImages = (frameFolders.isEmpty() ? "." : "./" + frameFolders.get(0)) + brick;
+		StringBuilder timePoints = new StringBuilder();
+		for (String folder : frameFolders){
+			if (timePoints.length() > 0) timePoints.append(", ");
+			timePoints.append("\"./").append(folder).append(brick).append("/\"");
+		}
+
+		Map<String, String> values = new HashMap<String, String>();
+		values.put("templateTitle", uniqueName + " - FPBioimage Viewer");
+		values.put("templateImagePath", relativePathToImages);
+		values.put("templateTimePoints", timePoints.toString());
+		values.put("templateUniqueName", uniqueName);
+		values.put("templateNumberOfImages", Integer.toString(layout.numberOfImages));
+		values.put("templateImagePrefix", uniqueName + "_z");
+		values.put("templateNumberingFormat", "0000");
+		values.put("templateVoxelX", Double.toString((options.voxelSizeX/options.scaleX)));
+		values.put("templateVoxelY", Double.toString((options.voxelSizeY/options.scaleY)));
+		values.put("templateVoxelZ", Double.toString((options.voxelSizeZ/options.scaleZ)));
+		// Where a cropped export sits in the whole volume, in the same units as the voxel size
+		values.put("templateCropX", Double.toString(options.isCropped() ? options.cropX * options.voxelSizeX : 0));
+		values.put("templateCropY", Double.toString(options.isCropped() ? options.cropY * options.voxelSizeY : 0));
+		values.put("templateCropZ", Double.toString(options.isCropped() ? options.cropZ * options.voxelSizeZ : 0));
+		values.put("templateSliceWidth", Integer.toString(layout.sliceWidth));
+		values.put("templateSliceHeight", Integer.toString(layout.sliceHeight));
+		values.put("templateAtlasLayout", layout.toJavaScript());
+		values.put("templateFileType", options.fileType);
+		values.put("templateImageAlpha", Boolean.toString(AtlasEncoders.create(options).keepsAlpha()));
+		values.put("templateAtlasFormat", options.atlasFormat == AtlasComposer.Format.AUTO ? "argb" : options.atlasFormat.toString().toLowerCase());
+		values.put("templateLevels", levelsToJavaScript(levels));
+		values.put("templateBrickManifest", options.bricked ? BrickGrid.MANIFEST : "");
+
+		// Finally, write the webpage to the save location
+		try (ExportReport.Stage stage = report.start(ExportReport.RENDER_TEMPLATE, htmlFile.getPath())) {
+			byte[] page = WebpageTemplate.getDefault().render(values).getBytes(StandardCharsets.UTF_8);
+			Files.write(htmlFile.toPath(), page);
+			stage.bytesOut(page.length).end();
+		}
+	}
+
+	// The reduced resolution levels, coarsest first, with paths relative to pathToImages.
+	// Keys are quoted like AtlasLayout.toJavaScript, so each level is also valid JSON.
+	private static String levelsToJavaScript(List<AtlasLayout> levels){
+		StringBuilder js = new StringBuilder();
+		for (int level=levels.size()-1; level>0; level--){
+			AtlasLayout layout = levels.get(level);
+			if (js.length() > 0) js.append(", ");
+			js.append("{\"path\": \"").append(AtlasPyramid.levelFolder(level)).append("/\"")
+				.append(", \"numberOfImages\": ").append(layout.numberOfImages)
+				.append(", \"sliceWidth\": ").append(layout.sliceWidth).append(", \"sliceHeight\": ").append(layout.sliceHeight)
+				.append(", \"atlasLayout\": ").append(layout.toJavaScript()).append("}");
+		}
+		return js.toString();
+	}
+
+}
@@ -0,0 +1,179 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.util.Arrays;
+
+import icy.image.IcyBufferedImage;
+import icy.image.colormap.IcyColorMap;
+import icy.image.lut.LUT;
+import icy.math.Scaler;
+
+public class FusedArgbKernel {
+
+	// Renders raw slices (any size, any Icy data type) straight into an atlas cell in a single
+	// pass. Each output pixel is the area average of the source pixels it covers, rendered
+	// through the viewer LUT and then through the atlas converter. The three separate passes
+	// (viewer render, XY scale, atlas render) each made a new image per slice. Averaging
+	// happens before colouring here, which only matters for non-linear colormaps. The same
+	// pass can instead measure the colours a slice will have, to fit the atlas LUT to them.
+
+	private final Scaler[] viewerScalers;
+	private final int[][] viewerColormaps; // packed ARGB per channel, IcyColorMap.SIZE entries each
+	private final boolean[] enabled;
+	private final int[][] atlasTables; // atlas colour of each 8-bit R, G, B and A value
+
+	// atlasConverter may be null for a kernel that only measures
+	public FusedArgbKernel(LUT viewerLut, ArgbConverter atlasConverter){
+		viewerScalers = viewerLut.getScalers();
+		viewerColormaps = new int[viewerScalers.length][];
+		enabled = new boolean[viewerScalers.length];
+		for (int c=0; c<viewerScalers.length; c++){
+			IcyColorMap colormap = viewerLut.getLutChannel(c).getColorMap();
+			enabled[c] = viewerLut.getLutChannel(c).isEnabled();
+			viewerColormaps[c] = new int[IcyColorMap.SIZE];
+			for (int i=0; i<IcyColorMap.SIZE; i++){
+				viewerColormaps[c][i] = ArgbConverter.pack(colormap.getNormalizedAlpha(i), colormap.getNormalizedRed(i), colormap.getNormalizedGreen(i), colormap.getNormalizedBlue(i));
+			}
+		}
+		// Rendered ARGB slices have their red, green, blue and alpha in channels 0 to 3
+		atlasTables = atlasConverter != null ? new int[4][] : null;
+		for (int c=0; c<4 && atlasConverter != null; c++){
+			atlasTables[c] = atlasConverter.table(c, 8, false);
+		}
+	}
+
+	private interface RowSink {
+		void put(int y, int[] argb);
+	}
+
+	// Writes src, resized to width x height, into dst from dstOffset with dstStride ints per row
+	public void render(IcyBufferedImage src, int width, int height, final int[] dst, final int dstOffset, final int dstStride){
+		if (atlasTables == null){
+			throw new IllegalStateException("This kernel has no atlas converter to render with");
+		}
+		viewerRows(src, width, height, (y, argb) -> {
+			int o = dstOffset + y*dstStride;
+			for (int x=0; x<argb.length; x++){
+				int atlas = atlasTables[0][(argb[x] >> 16) & 0xFF];
+				atlas = ArgbConverter.blend(atlas, atlasTables[1][(argb[x] >> 8) & 0xFF]);
+				atlas = ArgbConverter.blend(atlas, atlasTables[2][argb[x] & 0xFF]);
+				atlas = ArgbConverter.blend(atlas, atlasTables[3][argb[x] >>> 24]);
+				dst[o + x] = atlas;
+			}
+		});
+	}
+
+	// Widens min and max (red, green, blue and alpha, like the channels of a rendered ARGB
+	// slice) to take in the viewer colours of src resized to width x height. Several
+	// threads may measure into the same arrays.
+	public void measure(IcyBufferedImage src, int width, int height, int[] min, int[] max){
+		final int[] sliceMin = {0xFF, 0xFF, 0xFF, 0xFF};
+		final int[] sliceMax = new int[4];
+		viewerRows(src, width, height, (y, argb) -> {
+			for (int x=0; x<argb.length; x++){
+				for (int c=0; c<4; c++){
+					int value = (argb[x] >>> (c == 3 ? 24 : 16 - 8*c)) & 0xFF;
+					if (value < sliceMin[c]) sliceMin[c] = value;
+					if (value > sliceMax[c]) sliceMax[c] = value;
+				}
+			}
+		});
+		synchronized (min){
+			for (int c=0; c<4; c++){
+				min[c] = Math.min(min[c], sliceMin[c]);
+				max[c] = Math.max(max[c], sliceMax[c]);
+			}
+		}
+	}
+
+	// Hands each row of src, resized to width x height and rendered through the viewer LUT,
+	// to sink. The row buffer is reused.
+	private void viewerRows(IcyBufferedImage src, int width, int height, RowSink sink){
+		int srcWidth = src.getSizeX(); int srcHeight = src.getSizeY();
+		boolean signed = src.getDataType_().isSigned();
+		int numChannels = Math.min(src.getSizeC(), viewerScalers.length);
+
+		// Source columns [x0[x], x1[x]) go into output column x
+		int[] x0 = new int[width]; int[] x1 = new int[width];
+		for (int x=0; x<width; x++){
+			x0[x] = (int) ((long) x * srcWidth / width);
+			x1[x] = Math.max(x0[x] + 1, (int) ((long) (x + 1) * srcWidth / width));
+		}
+		Object[] data = new Object[numChannels];
+		for (int c=0; c<numChannels; c++){
+			data[c] = enabled[c] ? src.getDataXY(c) : null;
+		}
+		double[][] sums = new double[numChannels][width];
+		int[] row = new int[width];
+
+		for (int y=0; y<height; y++){
+			int y0 = (int) ((long) y * srcHeight / height);
+			int y1 = Math.max(y0 + 1, (int) ((long) (y + 1) * srcHeight / height));
+			for (int c=0; c<numChannels; c++){
+				if (data[c] == null) continue;
+				Arrays.fill(sums[c], 0);
+				for (int sy=y0; sy<y1; sy++){
+					addRow(data[c], sy*srcWidth, x0, x1, sums[c], signed);
+				}
+			}
+
+			int rows = y1 - y0;
+			for (int x=0; x<width; x++){
+				double count = (double) rows * (x1[x] - x0[x]);
+				int argb = 0;
+				for (int c=0; c<numChannels; c++){
+					if (data[c] == null) continue;
+					argb = ArgbConverter.blend(argb, viewerColormaps[c][LutCompiler.index(viewerScalers[c].scale(sums[c][x] / count))]);
+				}
+				row[x] = argb;
+			}
+			sink.put(y, row);
+		}
+	}
+
+	// Adds each output column's source pixels on the source row starting at offset
+	private static void addRow(Object data, int offset, int[] x0, int[] x1, double[] sums, boolean signed){
+		int width = sums.length;
+		if (data instanceof byte[]){
+			byte[] src = (byte[]) data;
+			int mask = signed ? 0xFFFFFFFF : 0xFF;
+			for (int x=0; x<width; x++){
+				long sum = 0;
+				for (int sx=x0[x]; sx<x1[x]; sx++) sum += src[offset + sx] & mask;
+				sums[x] += sum;
+			}
+		} else if (data instanceof short[]){
+			short[] src = (short[]) data;
+			int mask = signed ? 0xFFFFFFFF : 0xFFFF;
+			for (int x=0; x<width; x++){
+				long sum = 0;
+				for (int sx=x0[x]; sx<x1[x]; sx++) sum += src[offset + sx] & mask;
+				sums[x] += sum;
+			}
+		} else if (data instanceof int[]){
+			int[] src = (int[]) data;
+			long mask = signed ? 0xFFFFFFFFFFFFFFFFL : 0xFFFFFFFFL;
+			for (int x=0; x<width; x++){
+				long sum = 0;
+				for (int sx=x0[x]; sx<x1[x]; sx++) sum += src[offset + sx] & mask;
+				sums[x] += sum;
+			}
+		} else if (data instanceof float[]){
+			float[] src = (float[]) data;
+			for (int x=0; x<width; x++){
+				double sum = 0;
+				for (int sx=x0[x]; sx<x1[x]; sx++) sum += src[offset + sx];
+				sums[x] += sum;
+			}
+		} else if (data instanceof double[]){
+			double[] src = (double[]) data;
+			for (int x=0; x<width; x++){
+				double sum = 0;
+				for (int sx=x0[x]; sx<x1[x]; sx++) sum += src[offset + sx];
+				sums[x] += sum;
+			}
+		} else {
+			throw new IllegalArgumentException("Unsupported data type for ARGB conversion: " + data.getClass().getSimpleName());
+		}
+	}
+
+}
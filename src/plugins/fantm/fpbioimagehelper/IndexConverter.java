@@ -0,0 +1,87 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+
+import icy.image.IcyBufferedImage;
+import icy.image.colormap.IcyColorMap;
+import icy.image.lut.LUT;
+import icy.math.Scaler;
+import icy.type.DataType;
+
+public class IndexConverter {
+
+	// Renders one channel of IcyBufferedImages to 8-bit colormap indices through that
+	// channel's viewer scaler, straight into byte atlas buffers. With the matching palette
+	// the atlas looks the same as an ARGB one, at a quarter of the size.
+
+	private final int channel;
+	private final Scaler scaler;
+	private final byte[][] tables = new byte[4][]; // 8-bit, signed 8-bit, 16-bit, signed 16-bit
+
+	public IndexConverter(LUT viewerLut, int channel){
+		this.channel = channel;
+		this.scaler = viewerLut.getScalers()[channel];
+	}
+
+	// The index of each value of the given bits, indexed by those bits
+	private synchronized byte[] table(int bits, boolean signed){
+		int key = (bits == 16 ? 2 : 0) + (signed ? 1 : 0);
+		if (tables[key] == null){
+			tables[key] = LutCompiler.indexTable(scaler, bits, signed);
+		}
+		return tables[key];
+	}
+
+	// Writes the whole image into dst, starting at dstOffset, with dstStride bytes per row
+	public void convert(IcyBufferedImage image, byte[] dst, int dstOffset, int dstStride){
+		int width = image.getSizeX(); int height = image.getSizeY();
+		boolean signed = image.getDataType_().isSigned();
+		Object data = image.getDataXY(channel);
+		byte[] table = data instanceof byte[] ? table(8, signed) : data instanceof short[] ? table(16, signed) : null;
+
+		for (int y=0; y<height; y++){
+			int srcOffset = y*width; int o = dstOffset + y*dstStride;
+			if (data instanceof byte[]){
+				byte[] src = (byte[]) data;
+				for (int x=0; x<width; x++) dst[o + x] = table[src[srcOffset + x] & 0xFF];
+			} else if (data instanceof short[]){
+				short[] src = (short[]) data;
+				for (int x=0; x<width; x++) dst[o + x] = table[src[srcOffset + x] & 0xFFFF];
+			} else if (data instanceof int[]){
+				int[] src = (int[]) data;
+				long mask = signed ? 0xFFFFFFFFFFFFFFFFL : 0xFFFFFFFFL;
+				for (int x=0; x<width; x++) dst[o + x] = (byte) LutCompiler.index(scaler.scale(src[srcOffset + x] & mask));
+			} else if (data instanceof float[]){
+				float[] src = (float[]) data;
+				for (int x=0; x<width; x++) dst[o + x] = (byte) LutCompiler.index(scaler.scale(src[srcOffset + x]));
+			} else if (data instanceof double[]){
+				double[] src = (double[]) data;
+				for (int x=0; x<width; x++) dst[o + x] = (byte) LutCompiler.index(scaler.scale(src[srcOffset + x]));
+			} else {
+				throw new IllegalArgumentException("Unsupported data type for index conversion: " + data.getClass().getSimpleName());
+			}
+		}
+	}
+
+	// The colour each index would get in an ARGB atlas: the viewer colormap's colour,
+	// rendered through the atlas converter
+	public static IndexColorModel palette(LUT viewerLut, int channel, ArgbConverter atlasConverter){
+		IcyColorMap colormap = viewerLut.getLutChannel(channel).getColorMap();
+		IcyBufferedImage colours = new IcyBufferedImage(IcyColorMap.SIZE, 1, 4, DataType.UBYTE);
+		byte[][] rgba = new byte[4][];
+		for (int c=0; c<4; c++) rgba[c] = (byte[]) colours.getDataXY(c);
+		for (int i=0; i<IcyColorMap.SIZE; i++){
+			rgba[0][i] = (byte) Math.round(colormap.getNormalizedRed(i) * 255);
+			rgba[1][i] = (byte) Math.round(colormap.getNormalizedGreen(i) * 255);
+			rgba[2][i] = (byte) Math.round(colormap.getNormalizedBlue(i) * 255);
+			rgba[3][i] = (byte) Math.round(colormap.getNormalizedAlpha(i) * 255);
+		}
+		colours.dataChanged();
+
+		int[] argb = new int[IcyColorMap.SIZE];
+		atlasConverter.convert(colours, argb, 0, IcyColorMap.SIZE);
+		return new IndexColorModel(8, IcyColorMap.SIZE, argb, 0, true, -1, DataBuffer.TYPE_BYTE);
+	}
+
+}
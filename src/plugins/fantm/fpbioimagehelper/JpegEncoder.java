@@ -0,0 +1,84 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+public class JpegEncoder implements AtlasEncoder {
+
+	// Lossy atlases through ImageIO's JPEG writer. JPEG has no alpha channel, so ARGB and
+	// palette atlases keep their colours (not premultiplied) and the viewer derives alpha.
+
+	private final float quality;
+
+	// quality runs from 0 (smallest) to 1 (best)
+	public JpegEncoder(float quality){
+		this.quality = Math.max(0f, Math.min(1f, quality));
+	}
+
+	@Override
+	public String fileType(){
+		return "jpg";
+	}
+
+	@Override
+	public boolean keepsAlpha(){
+		return false;
+	}
+
+	@Override
+	public void write(BufferedImage atlas, OutputStream out) throws IOException {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+		if (!writers.hasNext()){
+			throw new IOException("No JPEG writer available");
+		}
+		ImageWriter writer = writers.next();
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		param.setCompressionQuality(quality);
+
+		ImageOutputStream imageOut = ImageIO.createImageOutputStream(out);
+		try {
+			writer.setOutput(imageOut);
+			writer.write(null, new IIOImage(opaque(atlas), null, null), param);
+		} finally {
+			writer.dispose();
+			imageOut.close(); // flushes, but leaves out open
+		}
+	}
+
+	// The atlas without its alpha: grayscale as it is, everything else as RGB
+	private static BufferedImage opaque(BufferedImage atlas){
+		if (atlas.getType() == BufferedImage.TYPE_BYTE_GRAY){
+			return atlas;
+		}
+		int width = atlas.getWidth(); int height = atlas.getHeight();
+		BufferedImage rgb = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		int[] dst = ((DataBufferInt) rgb.getRaster().getDataBuffer()).getData();
+
+		if (atlas.getType() == BufferedImage.TYPE_INT_ARGB){
+			int[] src = ((DataBufferInt) atlas.getRaster().getDataBuffer()).getData();
+			for (int i=0; i<dst.length; i++) dst[i] = src[i] & 0xFFFFFF;
+		} else if (atlas.getType() == BufferedImage.TYPE_BYTE_INDEXED){
+			byte[] src = ((DataBufferByte) atlas.getRaster().getDataBuffer()).getData();
+			ColorModel palette = atlas.getColorModel();
+			int[] colours = new int[256];
+			for (int i=0; i<colours.length; i++) colours[i] = palette.getRGB(i) & 0xFFFFFF;
+			for (int i=0; i<dst.length; i++) dst[i] = colours[src[i] & 0xFF];
+		} else {
+			throw new IllegalArgumentException("JpegEncoder only writes TYPE_INT_ARGB, TYPE_BYTE_GRAY and TYPE_BYTE_INDEXED images");
+		}
+		return rgb;
+	}
+
+}
@@ -0,0 +1,73 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.S3Object;
+
+public class LocalStorageClient implements StorageClient {
+
+	// Publishes into a folder instead of S3: bucket/key becomes root/bucket/key. Useful for
+	// trying out or testing the upload path offline, or for serving exports from a local web
+	// server. Listings report the ETags S3 would give the same files. Files are copied whole,
+	// so there is no multipart progress to keep.
+
+	private final File root;
+
+	public LocalStorageClient(File root){
+		this.root = root;
+	}
+
+	@Override
+	public List<S3Object> listObjects(String bucketName, String prefix) throws ServiceException {
+		File bucket = new File(root, bucketName);
+		List<S3Object> objects = new ArrayList<S3Object>();
+		if (!bucket.isDirectory()) return objects;
+
+		final Path bucketPath = bucket.toPath();
+		try (Stream<Path> paths = Files.walk(bucketPath)) {
+			for (Path path : paths.filter(Files::isRegularFile).collect(Collectors.toList())){
+				String key = bucketPath.relativize(path).toString().replace(File.separatorChar, '/');
+				if (!key.startsWith(prefix) || key.contains(".partial-")) continue;
+				File file = path.toFile();
+				S3Object object = new S3Object(key);
+				object.setContentLength(file.length());
+				object.setLastModifiedDate(new Date(file.lastModified()));
+				object.setETag(Uploader.localETag(file, Uploader.MULTIPART_PART_SIZE));
+				objects.add(object);
+			}
+		} catch (IOException | NoSuchAlgorithmException e) {
+			throw new ServiceException("Listing of " + prefix + " in " + bucket + " failed", e);
+		}
+		return objects;
+	}
+
+	@Override
+	public void putObject(String bucketName, String key, File file, String contentType, long multipartPartSize, PutProgress progress) throws ServiceException, IOException {
+		File target = new File(new File(root, bucketName), key);
+		target.getParentFile().mkdirs();
+		// Copied next to the target then renamed, so listings never see half a file
+		File partial = new File(target.getParentFile(), target.getName() + ".partial-" + Thread.currentThread().getId());
+		try {
+			Files.copy(file.toPath(), partial.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			Files.move(partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			partial.delete();
+		}
+	}
+
+	@Override
+	public void shutdown(){
+	}
+
+}
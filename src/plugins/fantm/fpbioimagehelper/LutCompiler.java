@@ -0,0 +1,45 @@
+package plugins.fantm.fpbioimagehelper;
+
+import icy.image.colormap.IcyColorMap;
+import icy.math.Scaler;
+
+public class LutCompiler {
+
+	// For 8 and 16-bit data the mapping from a raw value to its colour (or colormap index)
+	// is fixed once the scaler is, so it can be worked out for every possible value up
+	// front: 256 or 65536 entries. Tables are indexed by the raw bits (value & 0xFF or
+	// value & 0xFFFF), whether the data is signed or not.
+
+	// Packed ARGB colour of every value
+	public static int[] argbTable(Scaler scaler, int[] colormap, int bits, boolean signed){
+		int[] table = new int[1 << bits];
+		for (int i=0; i<table.length; i++){
+			table[i] = colormap[index(scaler.scale(value(i, bits, signed)))];
+		}
+		return table;
+	}
+
+	// Colormap index of every value
+	public static byte[] indexTable(Scaler scaler, int bits, boolean signed){
+		byte[] table = new byte[1 << bits];
+		for (int i=0; i<table.length; i++){
+			table[i] = (byte) index(scaler.scale(value(i, bits, signed)));
+		}
+		return table;
+	}
+
+	// The value whose raw bits are i
+	private static int value(int i, int bits, boolean signed){
+		if (!signed) return i;
+		return bits == 8 ? (byte) i : (short) i;
+	}
+
+	// The colormap index of a scaled value. Every converter uses this one, so the tables and
+	// the per-voxel paths can't disagree.
+	static int index(double scaled){
+		if (!(scaled > 0)) return 0; // also catches NaN
+		if (scaled >= IcyColorMap.MAX_INDEX) return IcyColorMap.MAX_INDEX;
+		return (int) scaled;
+	}
+
+}
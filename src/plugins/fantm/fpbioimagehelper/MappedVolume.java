@@ -0,0 +1,261 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import icy.common.exception.UnsupportedFormatException;
+import icy.file.Loader;
+import icy.file.SequenceFileImporter;
+import icy.image.IcyBufferedImage;
+import icy.image.lut.LUT;
+import icy.sequence.MetaDataUtil;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import ome.xml.meta.OMEXMLMetadata;
+
+public class MappedVolume implements Volume, Closeable {
+
+	// The frames of an image file an export needs, copied plane by plane from the file's
+	// importer to a memory-mapped scratch file, in their own data type. The file is never
+	// loaded as a Sequence: the heap only ever holds the plane being copied, and the export
+	// then reads its slices back one at a time (see Volume). Each plane has its own
+	// mapping, so volumes larger than 2GB are fine.
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final MappedByteBuffer[] planes;
+
+	private final int sizeX; private final int sizeY; private final int sizeZ; private final int sizeT; private final int sizeC;
+	private final DataType dataType;
+
+	// Where each staged frame's planes start in planes, -1 for frames not staged
+	private final int[] frameSlots;
+	// The smallest and largest value of each channel over the staged planes
+	private final double[] min; private final double[] max;
+
+	private MappedVolume(File file, RandomAccessFile raf, int sizeX, int sizeY, int sizeZ, int sizeT, int sizeC, DataType dataType, int frames){
+		this.file = file; this.raf = raf;
+		this.sizeX = sizeX; this.sizeY = sizeY; this.sizeZ = sizeZ; this.sizeT = sizeT; this.sizeC = sizeC;
+		this.dataType = dataType;
+		this.planes = new MappedByteBuffer[frames * sizeZ];
+		this.frameSlots = new int[sizeT];
+		Arrays.fill(frameSlots, -1);
+		this.min = new double[sizeC]; this.max = new double[sizeC];
+		Arrays.fill(min, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+	}
+
+	// Stages the frames of series 0 of the file at path that options exports, into a new
+	// scratch file in dir (the system temp dir if null). With swapSingleSliceZT, a file of
+	// single slices over several frames is staged as one z stack, as BatchExporter swaps
+	// loaded ones. Timed into report; the scratch file is deleted on close().
+	public static MappedVolume stage(String path, ExportOptions options, boolean swapSingleSliceZT, File dir, ExportReport report) throws IOException {
+		SequenceFileImporter importer = Loader.getSequenceFileImporter(path, true);
+		if (importer == null){
+			throw new IOException("No importer can read " + path);
+		}
+		try {
+			if (!importer.open(path, 0)){
+				throw new IOException("Could not open " + path);
+			}
+			try {
+				return stage(importer, path, options, swapSingleSliceZT, dir, report);
+			} finally {
+				importer.close();
+			}
+		} catch (UnsupportedFormatException e) {
+			throw new IOException("Could not read " + path, e);
+		}
+	}
+
+	// Importers aren't thread safe, so planes are read one after another
+	private static MappedVolume stage(SequenceFileImporter importer, String path, ExportOptions options, boolean swapSingleSliceZT, File dir, ExportReport report) throws IOException, UnsupportedFormatException {
+		OMEXMLMetadata metadata = importer.getOMEXMLMetaData();
+		int sizeZ = MetaDataUtil.getSizeZ(metadata, 0);
+		int sizeT = MetaDataUtil.getSizeT(metadata, 0);
+		boolean swap = swapSingleSliceZT && sizeZ == 1 && sizeT > 1;
+		if (swap){
+			sizeZ = sizeT;
+			sizeT = 1;
+		}
+
+		// Frames that don't exist are exported as frame 0, as AtlasExporter.checkedTimePoint does
+		Set<Integer> frames = new LinkedHashSet<Integer>();
+		for (int t : options.timePoints(sizeT)){
+			frames.add(t >= 0 && t < sizeT ? t : 0);
+		}
+		File file = File.createTempFile("fpb-stage-", ".raw", dir);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		MappedVolume volume = new MappedVolume(file, raf, MetaDataUtil.getSizeX(metadata, 0), MetaDataUtil.getSizeY(metadata, 0), sizeZ, sizeT,
+				MetaDataUtil.getSizeC(metadata, 0), MetaDataUtil.getDataType(metadata, 0), frames.size());
+		try (ExportReport.Stage stage = report.start(ExportReport.STAGE, new File(path).getName())) {
+			long planeBytes = volume.planeBytes();
+			raf.setLength(planeBytes * volume.planes.length);
+			FileChannel channel = raf.getChannel();
+			int slot = 0;
+			for (int frame : frames){
+				volume.frameSlots[frame] = slot;
+				for (int z=0; z<sizeZ; z++){
+					report.checkCancelled();
+					int i = slot * sizeZ + z;
+					volume.planes[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * planeBytes, planeBytes);
+					IcyBufferedImage plane = swap ? importer.getImage(0, 0, 0, z) : importer.getImage(0, 0, z, frame);
+					if (plane == null || plane.getSizeX() != volume.sizeX || plane.getSizeY() != volume.sizeY || plane.getSizeC() != volume.sizeC
+							|| plane.getDataType_() != volume.dataType){
+						throw new IOException("Plane z" + z + " t" + frame + " of " + path + " doesn't match the file's metadata");
+					}
+					volume.put(i, plane);
+				}
+				slot++;
+			}
+			stage.bytesIn(volume.bytes()).bytesOut(volume.bytes()).end();
+		} catch (IOException | UnsupportedFormatException | RuntimeException e) {
+			volume.close();
+			throw e;
+		}
+		return volume;
+	}
+
+	private long planeBytes(){
+		return (long) sizeX * sizeY * sizeC * dataType.getSize();
+	}
+
+	private ByteBuffer plane(int i){
+		return planes[i].duplicate().order(ByteOrder.nativeOrder());
+	}
+
+	private void put(int i, IcyBufferedImage image){
+		ByteBuffer buffer = plane(i);
+		boolean signed = dataType.isSigned();
+		for (int c=0; c<sizeC; c++){
+			Object data = image.getDataXY(c);
+			updateBounds(c, data, signed);
+			if (data instanceof byte[]) buffer.put((byte[]) data);
+			else if (data instanceof short[]) { buffer.asShortBuffer().put((short[]) data); skip(buffer, 2 * ((short[]) data).length); }
+			else if (data instanceof int[]) { buffer.asIntBuffer().put((int[]) data); skip(buffer, 4 * ((int[]) data).length); }
+			else if (data instanceof float[]) { buffer.asFloatBuffer().put((float[]) data); skip(buffer, 4 * ((float[]) data).length); }
+			else if (data instanceof double[]) { buffer.asDoubleBuffer().put((double[]) data); skip(buffer, 8 * ((double[]) data).length); }
+			else throw new IllegalArgumentException("Unsupported data type for staging: " + data.getClass().getSimpleName());
+		}
+	}
+
+	private void updateBounds(int c, Object data, boolean signed){
+		int length = sizeX * sizeY;
+		for (int i=0; i<length; i++){
+			double value = CropBox.value(data, i, signed);
+			if (value < min[c]) min[c] = value;
+			if (value > max[c]) max[c] = value;
+		}
+	}
+
+	private static void skip(ByteBuffer buffer, int bytes){
+		buffer.position(buffer.position() + bytes);
+	}
+
+	@Override
+	public int getSizeX(){
+		return sizeX;
+	}
+
+	@Override
+	public int getSizeY(){
+		return sizeY;
+	}
+
+	@Override
+	public int getSizeZ(){
+		return sizeZ;
+	}
+
+	@Override
+	public int getSizeT(){
+		return sizeT;
+	}
+
+	@Override
+	public int getSizeC(){
+		return sizeC;
+	}
+
+	@Override
+	public DataType getDataType_(){
+		return dataType;
+	}
+
+	// A heap copy of slice z of frame t, which has to be one of the staged frames
+	@Override
+	public IcyBufferedImage getImage(int t, int z){
+		if (t < 0 || t >= sizeT || frameSlots[t] < 0){
+			throw new IllegalArgumentException("Frame " + t + " wasn't staged");
+		}
+		IcyBufferedImage image = new IcyBufferedImage(sizeX, sizeY, sizeC, dataType);
+		ByteBuffer buffer = plane(frameSlots[t] * sizeZ + z);
+		for (int c=0; c<sizeC; c++){
+			Object data = image.getDataXY(c);
+			if (data instanceof byte[]) buffer.get((byte[]) data);
+			else if (data instanceof short[]) { buffer.asShortBuffer().get((short[]) data); skip(buffer, 2 * ((short[]) data).length); }
+			else if (data instanceof int[]) { buffer.asIntBuffer().get((int[]) data); skip(buffer, 4 * ((int[]) data).length); }
+			else if (data instanceof float[]) { buffer.asFloatBuffer().get((float[]) data); skip(buffer, 4 * ((float[]) data).length); }
+			else if (data instanceof double[]) { buffer.asDoubleBuffer().get((double[]) data); skip(buffer, 8 * ((double[]) data).length); }
+		}
+		image.dataChanged();
+		return image;
+	}
+
+	@Override
+	public Sequence getSequence(){
+		return null;
+	}
+
+	// The LUT Icy would give the staged frames loaded as a sequence, fitted to the bounds
+	// of each channel. createCompatibleLUT only looks at those bounds, so a 2 pixel image
+	// holding them stands in for the whole volume.
+	public LUT createLUT(){
+		IcyBufferedImage bounds = new IcyBufferedImage(2, 1, sizeC, dataType);
+		for (int c=0; c<sizeC; c++){
+			Object data = bounds.getDataXY(c);
+			setValue(data, 0, min[c] <= max[c] ? min[c] : 0);
+			setValue(data, 1, min[c] <= max[c] ? max[c] : 0);
+		}
+		bounds.dataChanged();
+		Sequence boundsStack = new Sequence();
+		boundsStack.addImage(bounds);
+		return boundsStack.createCompatibleLUT();
+	}
+
+	private static void setValue(Object data, int i, double value){
+		if (data instanceof byte[]) ((byte[]) data)[i] = (byte) (long) value;
+		else if (data instanceof short[]) ((short[]) data)[i] = (short) (long) value;
+		else if (data instanceof int[]) ((int[]) data)[i] = (int) (long) value;
+		else if (data instanceof float[]) ((float[]) data)[i] = (float) value;
+		else if (data instanceof double[]) ((double[]) data)[i] = value;
+	}
+
+	// Bytes staged
+	public long bytes(){
+		return planeBytes() * planes.length;
+	}
+
+	// The mappings are only released once collected, so the file may outlive this
+	// on some platforms; it is then removed when the JVM exits
+	@Override
+	public void close() throws IOException {
+		try {
+			raf.close();
+		} finally {
+			if (!file.delete()){
+				file.deleteOnExit();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,241 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+public class PngEncoder implements AtlasEncoder {
+
+	// Minimal PNG writer for the texture atlases, so the deflate level and row filter
+	// can be chosen per export (ImageIO doesn't expose either).
+
+	public enum Filter {
+		NONE, SUB, UP, AVERAGE, PAETH,
+		ADAPTIVE // Best of the five for every row: slowest, usually smallest
+	}
+
+	private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+	private static final int IDAT_SIZE = 1 << 16;
+
+	private final int compressionLevel;
+	private final Filter filter;
+
+	public PngEncoder(int compressionLevel, Filter filter){
+		this.compressionLevel = compressionLevel;
+		this.filter = filter;
+	}
+
+	@Override
+	public String fileType(){
+		return "png";
+	}
+
+	@Override
+	public boolean keepsAlpha(){
+		return true;
+	}
+
+	// Writes a TYPE_INT_ARGB image as 8-bit RGBA, TYPE_BYTE_GRAY as 8-bit grayscale,
+	// or TYPE_BYTE_INDEXED as an 8-bit palette image (with the palette's alpha)
+	@Override
+	public void write(BufferedImage image, OutputStream out) throws IOException {
+		int colourType; int bpp;
+		switch (image.getType()){
+		case BufferedImage.TYPE_INT_ARGB: colourType = 6; bpp = 4; break;
+		case BufferedImage.TYPE_BYTE_GRAY: colourType = 0; bpp = 1; break;
+		case BufferedImage.TYPE_BYTE_INDEXED: colourType = 3; bpp = 1; break;
+		default: throw new IllegalArgumentException("PngEncoder only writes TYPE_INT_ARGB, TYPE_BYTE_GRAY and TYPE_BYTE_INDEXED images");
+		}
+		int width = image.getWidth(); int height = image.getHeight();
+		int[] pixels = bpp == 4 ? ((DataBufferInt) image.getRaster().getDataBuffer()).getData() : null;
+		byte[] bytePixels = bpp == 1 ? ((DataBufferByte) image.getRaster().getDataBuffer()).getData() : null;
+
+		DataOutputStream dataOut = new DataOutputStream(out);
+		dataOut.write(SIGNATURE);
+
+		ChunkWriter header = new ChunkWriter(dataOut, "IHDR");
+		DataOutputStream ihdr = new DataOutputStream(header);
+		ihdr.writeInt(width);
+		ihdr.writeInt(height);
+		ihdr.writeByte(8); // bit depth
+		ihdr.writeByte(colourType);
+		ihdr.writeByte(0); // compression: deflate
+		ihdr.writeByte(0); // filter method: adaptive
+		ihdr.writeByte(0); // no interlace
+		header.close();
+
+		if (colourType == 3){
+			writePalette(dataOut, (IndexColorModel) image.getColorModel());
+		}
+
+		int rowBytes = width * bpp;
+		byte[] previous = new byte[rowBytes];
+		byte[] current = new byte[rowBytes];
+		byte[][] filtered = new byte[5][rowBytes + 1];
+
+		Deflater deflater = new Deflater(compressionLevel);
+		if (filter != Filter.NONE){
+			deflater.setStrategy(Deflater.FILTERED);
+		}
+		ChunkWriter idat = new ChunkWriter(dataOut, "IDAT");
+		DeflaterOutputStream compressed = new DeflaterOutputStream(idat, deflater, IDAT_SIZE);
+		try {
+			for (int y=0; y<height; y++){
+				int o = y * width;
+				if (bpp == 1){
+					System.arraycopy(bytePixels, o, current, 0, width);
+				} else {
+					for (int x=0, b=0; x<width; x++, b+=4){
+						int argb = pixels[o + x];
+						current[b] = (byte) (argb >> 16);
+						current[b+1] = (byte) (argb >> 8);
+						current[b+2] = (byte) argb;
+						current[b+3] = (byte) (argb >>> 24);
+					}
+				}
+				compressed.write(filterRow(current, previous, bpp, filtered));
+				byte[] swap = previous; previous = current; current = swap;
+			}
+			compressed.finish();
+		} finally {
+			deflater.end();
+		}
+		idat.close();
+
+		new ChunkWriter(dataOut, "IEND").close();
+		dataOut.flush();
+	}
+
+	// PLTE, plus tRNS up to the last entry that isn't opaque
+	private static void writePalette(DataOutputStream dataOut, IndexColorModel palette) throws IOException {
+		int size = palette.getMapSize();
+		ChunkWriter plte = new ChunkWriter(dataOut, "PLTE");
+		int lastTransparent = -1;
+		for (int i=0; i<size; i++){
+			plte.write(palette.getRed(i));
+			plte.write(palette.getGreen(i));
+			plte.write(palette.getBlue(i));
+			if (palette.getAlpha(i) != 0xFF) lastTransparent = i;
+		}
+		plte.close();
+
+		if (lastTransparent >= 0){
+			ChunkWriter trns = new ChunkWriter(dataOut, "tRNS");
+			for (int i=0; i<=lastTransparent; i++){
+				trns.write(palette.getAlpha(i));
+			}
+			trns.close();
+		}
+	}
+
+	// Returns the filter type byte followed by the filtered row
+	byte[] filterRow(byte[] row, byte[] previous, int bpp, byte[][] filtered){
+		if (filter != Filter.ADAPTIVE){
+			int type = filter.ordinal();
+			applyFilter(type, row, previous, bpp, filtered[type]);
+			return filtered[type];
+		}
+
+		// Minimum sum of absolute differences heuristic from the PNG spec
+		int best = 0; long bestScore = Long.MAX_VALUE;
+		for (int type=0; type<5; type++){
+			byte[] f = filtered[type];
+			applyFilter(type, row, previous, bpp, f);
+			long score = 0;
+			for (int i=1; i<f.length; i++){
+				score += Math.abs((int) f[i]);
+			}
+			if (score < bestScore){
+				bestScore = score; best = type;
+			}
+		}
+		return filtered[best];
+	}
+
+	static void applyFilter(int type, byte[] row, byte[] previous, int bpp, byte[] out){
+		out[0] = (byte) type;
+		for (int i=0; i<row.length; i++){
+			int x = row[i] & 0xFF;
+			int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+			int b = previous[i] & 0xFF;
+			int c = i >= bpp ? previous[i - bpp] & 0xFF : 0;
+			switch (type){
+			case 0: out[i+1] = (byte) x; break;
+			case 1: out[i+1] = (byte) (x - a); break;
+			case 2: out[i+1] = (byte) (x - b); break;
+			case 3: out[i+1] = (byte) (x - ((a + b) >> 1)); break;
+			default: out[i+1] = (byte) (x - paeth(a, b, c)); break;
+			}
+		}
+	}
+
+	private static int paeth(int a, int b, int c){
+		int p = a + b - c;
+		int pa = Math.abs(p - a); int pb = Math.abs(p - b); int pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc) return a;
+		if (pb <= pc) return b;
+		return c;
+	}
+
+	// Buffers one chunk's data, then writes length, type, data and CRC on close
+	private static class ChunkWriter extends OutputStream {
+		private final DataOutputStream out;
+		private final byte[] type;
+		private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		private final boolean split;
+
+		ChunkWriter(DataOutputStream out, String type){
+			this.out = out;
+			this.type = type.getBytes(StandardCharsets.US_ASCII);
+			this.split = type.equals("IDAT");
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			data.write(b);
+			flushIfFull();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			data.write(b, off, len);
+			flushIfFull();
+		}
+
+		private void flushIfFull() throws IOException {
+			// Image data may span any number of consecutive IDAT chunks
+			if (split && data.size() >= IDAT_SIZE){
+				writeChunk();
+			}
+		}
+
+		private void writeChunk() throws IOException {
+			byte[] bytes = data.toByteArray();
+			data.reset();
+			CRC32 crc = new CRC32();
+			crc.update(type);
+			crc.update(bytes);
+			out.writeInt(bytes.length);
+			out.write(type);
+			out.write(bytes);
+			out.writeInt((int) crc.getValue());
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!split || data.size() > 0){
+				writeChunk();
+			}
+		}
+	}
+
+}
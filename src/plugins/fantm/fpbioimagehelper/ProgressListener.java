@@ -0,0 +1,8 @@
+package plugins.fantm.fpbioimagehelper;
+
+public interface ProgressListener {
+
+	// position runs from 0 to 1
+	void progress(double position, String message);
+
+}
@@ -0,0 +1,191 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.acl.AccessControlList;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Object;
+
+public class S3StorageClient implements StorageClient {
+
+	// One S3Service (so one set of credentials and one keep-alive connection pool) for all
+	// uploads. Requests that fail for reasons worth another go (no response, 5xx, throttling)
+	// are retried with exponential backoff (the only retries: Bucket turns off jets3t's own);
+	// anything else (403, 404...) fails straight away.
+	// Multipart uploads are retried part by part, and can carry on where an earlier,
+	// interrupted upload of the same file stopped.
+
+	public static final int MAX_ATTEMPTS = 5;
+	public static final long INITIAL_BACKOFF_MS = 250;
+	public static final long MAX_BACKOFF_MS = 8000;
+
+	private final S3Service s3Service;
+
+	public S3StorageClient(S3Service s3Service){
+		this.s3Service = s3Service;
+	}
+
+	private interface Request<T> {
+		T run() throws ServiceException, IOException;
+	}
+
+	@Override
+	public List<S3Object> listObjects(final String bucketName, final String prefix) throws ServiceException {
+		try {
+			return withRetries("list " + prefix, null, () -> Arrays.asList(s3Service.listObjects(bucketName, prefix, null)));
+		} catch (IOException e) {
+			throw new ServiceException("Listing of " + prefix + " failed", e);
+		}
+	}
+
+	@Override
+	public void putObject(final String bucketName, final String key, final File file, final String contentType, final long multipartPartSize, PutProgress progress) throws ServiceException, IOException {
+		if (file.length() > multipartPartSize){
+			putMultipart(bucketName, key, file, contentType, multipartPartSize, progress);
+			return;
+		}
+		withRetries("put " + key, progress, () -> {
+			// A new object each attempt, as the last one's stream has been read
+			S3Object uploadThis = newObject(key, file);
+			uploadThis.addMetadata("Content-Type", contentType);
+			uploadThis.setAcl(AccessControlList.REST_CANNED_PUBLIC_READ);
+			s3Service.putObject(bucketName, uploadThis);
+			return null;
+		});
+	}
+
+	// Sends file in parts, each retried on its own. If progress has an upload already
+	// started, the parts S3 holds for it that match the file aren't sent again.
+	private void putMultipart(final String bucketName, final String key, File file, String contentType, long partSize, PutProgress progress) throws ServiceException, IOException {
+		Map<Integer, MultipartPart> sent = new HashMap<Integer, MultipartPart>();
+		MultipartUpload resumed = null;
+		String uploadId = progress != null ? progress.getUploadId() : null;
+		if (uploadId != null){
+			final MultipartUpload previous = new MultipartUpload(uploadId, bucketName, key);
+			try {
+				for (MultipartPart part : withRetries("list parts of " + key, progress, () -> s3Service.multipartListParts(previous))){
+					sent.put(part.getPartNumber(), part);
+				}
+				resumed = previous;
+			} catch (ServiceException e) {
+				// Aborted or expired: start again
+				if (e.getResponseCode() != 404) throw e;
+			}
+		}
+
+		final MultipartUpload upload;
+		if (resumed != null){
+			upload = resumed;
+		} else {
+			final S3Object metadata = new S3Object(key);
+			metadata.addMetadata("Content-Type", contentType);
+			metadata.setAcl(AccessControlList.REST_CANNED_PUBLIC_READ);
+			upload = withRetries("start " + key, progress, () -> s3Service.multipartStartUpload(bucketName, metadata));
+			if (progress != null) progress.started(upload.getUploadId());
+		}
+
+		final List<MultipartPart> parts = new ArrayList<MultipartPart>();
+		int numberOfParts = (int) ((file.length() + partSize - 1) / partSize);
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			for (int number=1; number<=numberOfParts; number++){
+				if (progress != null && progress.isCancelled()){
+					throw new CancellationException("Upload of " + key + " cancelled");
+				}
+				final byte[] data = new byte[(int) Math.min(partSize, file.length() - (number - 1) * partSize)];
+				in.seek((number - 1) * partSize);
+				in.readFully(data);
+
+				MultipartPart previous = sent.get(number);
+				if (previous != null && previous.getEtag() != null && previous.getSize() != null && previous.getSize() == data.length
+						&& unquote(previous.getEtag()).equalsIgnoreCase(newObject(key, data).getMd5HashAsHex())){
+					parts.add(previous);
+					continue;
+				}
+				final Integer partNumber = number;
+				parts.add(withRetries("put part " + number + " of " + key, progress, () -> s3Service.multipartUploadPart(upload, partNumber, newObject(key, data))));
+			}
+		}
+		withRetries("complete " + key, progress, () -> s3Service.multipartCompleteUpload(upload, parts));
+	}
+
+	private static S3Object newObject(String key, File file) throws IOException {
+		try {
+			S3Object object = new S3Object(file);
+			object.setKey(key);
+			return object;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static S3Object newObject(String key, byte[] data) throws IOException {
+		try {
+			return new S3Object(key, data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static String unquote(String etag){
+		return etag.startsWith("\"") && etag.endsWith("\"") && etag.length() > 1 ? etag.substring(1, etag.length() - 1) : etag;
+	}
+
+	// Retries are told to progress, if not null
+	private static <T> T withRetries(String what, PutProgress progress, Request<T> request) throws ServiceException, IOException {
+		for (int attempt = 1; ; attempt++){
+			try {
+				return request.run();
+			} catch (ServiceException | IOException e) {
+				if (attempt >= MAX_ATTEMPTS || !isRetryable(e)) throw e;
+				long backoff = backoff(attempt);
+				if (progress != null) progress.retrying(what, e, backoff);
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException interrupted) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	// Doubling each attempt up to MAX_BACKOFF_MS, with jitter so that parallel uploads
+	// failing together don't all come back at once
+	static long backoff(int attempt){
+		long ceiling = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(attempt - 1, 16));
+		return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+	}
+
+	static boolean isRetryable(Exception e){
+		if (e instanceof IOException) return true;
+		ServiceException serviceException = (ServiceException) e;
+		int code = serviceException.getResponseCode();
+		if (code <= 0) return true; // no response at all: connection reset, timeout...
+		if (code >= 500 || code == 429) return true;
+		String errorCode = serviceException.getErrorCode();
+		return "RequestTimeout".equals(errorCode) || "SlowDown".equals(errorCode);
+	}
+
+	@Override
+	public void shutdown(){
+		try {
+			s3Service.shutdown();
+		} catch (ServiceException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,44 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.S3Object;
+
+public interface StorageClient {
+
+	// Where exports are published: S3 (S3StorageClient) or a local folder standing in for it
+	// (LocalStorageClient). Implementations are thread-safe and meant to be long-lived, shared
+	// by every upload of every export.
+
+	// Every object whose key starts with prefix, with its key, ETag and last modified date
+	List<S3Object> listObjects(String bucketName, String prefix) throws ServiceException;
+
+	// Follows one put: where a multipart upload has got to, so that an interrupted one can
+	// carry on from the parts already sent (see UploadJournal), and any requests retried
+	interface PutProgress {
+		// The upload to continue, or null to start a new one
+		String getUploadId();
+
+		void started(String uploadId);
+
+		// Checked before each part is sent, so a cancelled export stops mid-file. The
+		// upload is left open, for a later one to carry on from.
+		default boolean isCancelled(){
+			return false;
+		}
+
+		// A request (what) failed with cause, and is tried again after backoffMs
+		default void retrying(String what, Exception cause, long backoffMs){
+		}
+	}
+
+	// Stores file under key, publicly readable. Files bigger than multipartPartSize may be
+	// sent in parts of that size, recorded in progress (which may be null).
+	void putObject(String bucketName, String key, File file, String contentType, long multipartPartSize, PutProgress progress) throws ServiceException, IOException;
+
+	void shutdown();
+
+}
@@ -0,0 +1,217 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class UploadJournal implements Closeable {
+
+	// What has been published of an export, kept next to it so that an upload that failed
+	// or was interrupted can carry on: each file is queued (with the ETag it will have),
+	// then sending, then done. Multipart uploads also record their upload id, so their
+	// parts already on S3 aren't sent again. Lines are appended and flushed as things
+	// happen, so the journal survives the plugin or Icy dying mid-upload. A file done with
+	// the same ETag is never sent again. Opening a journal for another bucket or key prefix
+	// starts it afresh.
+
+	public static final String FILENAME = "upload-journal.txt";
+
+	public enum State { QUEUED, SENDING, DONE }
+
+	private static class Entry {
+		final String key;
+		String path; // relative to the export folder
+		String etag;
+		State state = State.QUEUED;
+		String uploadId;
+
+		Entry(String key){
+			this.key = key;
+		}
+	}
+
+	private final File dir;
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private final Writer writer;
+
+	private UploadJournal(File dir, String bucketName, String keyPrefix) throws IOException {
+		this.dir = dir.getCanonicalFile();
+		File file = new File(dir, FILENAME);
+		String header = "publish\t" + bucketName + "\t" + keyPrefix;
+		if (file.isFile()){
+			List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+			if (!lines.isEmpty() && lines.get(0).equals(header)){
+				read(lines, entries);
+			}
+		}
+
+		// Rewritten with just the latest state of each file, so it doesn't keep growing
+		dir.mkdirs();
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+		writer.write(header + "\n");
+		for (Entry entry : entries.values()){
+			writer.write(String.join("\t", "queued", entry.key, entry.path, entry.etag) + "\n");
+			if (entry.uploadId != null) writer.write(String.join("\t", "multipart", entry.key, entry.etag, entry.uploadId) + "\n");
+			if (entry.state == State.DONE) writer.write(String.join("\t", "done", entry.key, entry.etag) + "\n");
+		}
+		writer.flush();
+	}
+
+	// The journal of the export in dir, published to bucketName under keyPrefix
+	public static UploadJournal open(File dir, String bucketName, String keyPrefix) throws IOException {
+		return new UploadJournal(dir, bucketName, keyPrefix);
+	}
+
+	// Whether dir has a journal with files still to upload, from an export that got as far
+	// as queuing its webpage (under webpageKey), without opening it for writing
+	public static boolean canResume(File dir, String webpageKey){
+		File file = new File(dir, FILENAME);
+		if (!file.isFile()) return false;
+		try {
+			Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+			read(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8), entries);
+			if (!entries.containsKey(webpageKey)) return false;
+			for (Entry entry : entries.values()){
+				if (entry.state != State.DONE) return true;
+			}
+			return false;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// Replays every line after the header
+	private static void read(List<String> lines, Map<String, Entry> entries){
+		for (String line : lines.subList(Math.min(1, lines.size()), lines.size())){
+			replay(entries, line.split("\t"));
+		}
+	}
+
+	private static void replay(Map<String, Entry> entries, String[] fields){
+		if (fields.length < 3) return; // cut short when it was last written
+		Entry entry = entries.get(fields[1]);
+		switch (fields[0]){
+		case "queued":
+			if (fields.length < 4) return;
+			if (entry == null){
+				entry = new Entry(fields[1]);
+				entries.put(entry.key, entry);
+			}
+			if (!fields[3].equals(entry.etag)){
+				entry.state = State.QUEUED;
+				entry.uploadId = null;
+			}
+			entry.path = fields[2];
+			entry.etag = fields[3];
+			break;
+		case "sending":
+			if (entry != null && entry.state != State.DONE) entry.state = State.SENDING;
+			break;
+		case "multipart":
+			if (entry != null && fields.length >= 4 && fields[2].equals(entry.etag)) entry.uploadId = fields[3];
+			break;
+		case "done":
+			if (entry != null && fields[2].equals(entry.etag)) entry.state = State.DONE;
+			break;
+		}
+	}
+
+	private void append(String... fields){
+		String line = String.join("\t", fields);
+		replay(entries, fields);
+		try {
+			writer.write(line + "\n");
+			writer.flush();
+		} catch (IOException e) {
+			// Only costs the ability to resume
+			System.out.println("Could not write to the upload journal: " + e);
+		}
+	}
+
+	// file is to be uploaded under key, and will have etag once it is
+	public synchronized void queued(String key, File file, String etag){
+		append("queued", key, relativePath(file), etag);
+	}
+
+	public synchronized void sending(String key){
+		append("sending", key, "-");
+	}
+
+	public synchronized void done(String key, String etag){
+		append("done", key, etag);
+	}
+
+	// Whether key was uploaded from a file with this etag
+	public synchronized boolean isDone(String key, String etag){
+		Entry entry = entries.get(key);
+		return entry != null && entry.state == State.DONE && etag.equalsIgnoreCase(entry.etag);
+	}
+
+	public synchronized boolean contains(String key){
+		return entries.containsKey(key);
+	}
+
+	public synchronized State getState(String key){
+		Entry entry = entries.get(key);
+		return entry != null ? entry.state : null;
+	}
+
+	// The files not uploaded yet, by key, in the order they were queued
+	public synchronized Map<String, File> pending(){
+		Map<String, File> pending = new LinkedHashMap<String, File>();
+		for (Entry entry : entries.values()){
+			if (entry.state == State.DONE) continue;
+			File file = new File(entry.path);
+			pending.put(entry.key, file.isAbsolute() ? file : new File(dir, entry.path));
+		}
+		return pending;
+	}
+
+	// Progress of key's multipart upload, if the file still has etag
+	public StorageClient.PutProgress multipart(final String key, final String etag){
+		return new StorageClient.PutProgress(){
+			@Override
+			public String getUploadId(){
+				synchronized (UploadJournal.this){
+					Entry entry = entries.get(key);
+					return entry != null && etag.equalsIgnoreCase(entry.etag) ? entry.uploadId : null;
+				}
+			}
+
+			@Override
+			public void started(String uploadId){
+				synchronized (UploadJournal.this){
+					append("multipart", key, etag, uploadId);
+				}
+			}
+		};
+	}
+
+	private String relativePath(File file){
+		try {
+			return dir.toPath().relativize(file.getCanonicalFile().toPath()).toString();
+		} catch (IOException | IllegalArgumentException e) {
+			return file.getAbsolutePath();
+		}
+	}
+
+	// Everything is already flushed, so failing to close loses nothing
+	@Override
+	public synchronized void close(){
+		try {
+			writer.close();
+		} catch (IOException e) {
+			System.out.println("Could not close the upload journal: " + e);
+		}
+	}
+
+}
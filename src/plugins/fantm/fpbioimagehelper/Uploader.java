@@ -0,0 +1,224 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Hex;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.S3Object;
+
+public class Uploader {
+
+	// Uploads export files on a bounded pool, so several PUTs are in flight at once and
+	// each file can go up as soon as it has been written. Files whose ETag matches the
+	// object already in the bucket (from the last listObjects) are not sent again, nor are
+	// those an UploadJournal has as done. The StorageClient is shared and outlives the
+	// uploader.
+
+	public static final int DEFAULT_THREADS = 4;
+
+	// Files bigger than this are sent as multipart uploads, in parts of this size
+	public static final long MULTIPART_PART_SIZE = 8L * 1024 * 1024;
+
+	private final StorageClient client;
+	private final String bucketName;
+	private final ExecutorService executor;
+
+	private final Map<String, String> remoteETags = new ConcurrentHashMap<String, String>();
+	private final AtomicInteger skipped = new AtomicInteger();
+
+	public Uploader(StorageClient client, String bucketName, int threads){
+		if (client == null){
+			throw new IllegalArgumentException("No storage client to upload through");
+		}
+		this.client = client;
+		this.bucketName = bucketName;
+		this.executor = Executors.newFixedThreadPool(threads);
+	}
+
+	// All objects under keyPrefix, by key, from a single listing. Their ETags are kept
+	// so that unchanged files are skipped.
+	public Map<String, S3Object> listObjects(String keyPrefix) throws ServiceException {
+		Map<String, S3Object> objects = new HashMap<String, S3Object>();
+		for (S3Object object : client.listObjects(bucketName, keyPrefix + "/")){
+			objects.put(object.getKey(), object);
+			if (object.getETag() != null){
+				remoteETags.put(object.getKey(), unquote(object.getETag()));
+			}
+		}
+		return objects;
+	}
+
+	public CompletableFuture<String> upload(final File file, final String key){
+		return upload(file, key, new ExportReport());
+	}
+
+	// Each PUT (or skipped upload, with no bytes out) is timed into report
+	public CompletableFuture<String> upload(final File file, final String key, final ExportReport report){
+		return upload(file, key, report, null);
+	}
+
+	// Also records the upload in journal (if not null), and skips it if the journal says
+	// it has already been done
+	public CompletableFuture<String> upload(final File file, final String key, final ExportReport report, final UploadJournal journal){
+		return CompletableFuture.supplyAsync(() -> {
+			try (ExportReport.Stage stage = report.start(ExportReport.UPLOAD, key).bytesIn(file.length())) {
+				try {
+					String remoteETag = remoteETags.get(key);
+					String etag = remoteETag != null || journal != null ? localETag(file, MULTIPART_PART_SIZE) : null;
+					if (journal != null) journal.queued(key, file, etag);
+					if ((remoteETag != null && remoteETag.equalsIgnoreCase(etag)) || (journal != null && journal.isDone(key, etag))){
+						skipped.incrementAndGet();
+					} else if (journal != null){
+						journal.sending(key);
+						put(file, key, putProgress(journal.multipart(key, etag), report));
+						stage.bytesOut(file.length());
+					} else {
+						put(file, key, putProgress(null, report));
+						stage.bytesOut(file.length());
+					}
+					if (journal != null) journal.done(key, etag);
+				} catch (ServiceException | IOException | NoSuchAlgorithmException e) {
+					stage.fail(e);
+					throw new CompletionException("Upload of " + key + " failed", e);
+				}
+				stage.end();
+				return key;
+			}
+		}, executor);
+	}
+
+	// Uploads the file once it has been written
+	public CompletableFuture<String> upload(CompletableFuture<File> file, final String key){
+		return upload(file, key, new ExportReport());
+	}
+
+	public CompletableFuture<String> upload(CompletableFuture<File> file, final String key, final ExportReport report){
+		return upload(file, key, report, null);
+	}
+
+	public CompletableFuture<String> upload(CompletableFuture<File> file, final String key, final ExportReport report, final UploadJournal journal){
+		return file.thenCompose(f -> upload(f, key, report, journal));
+	}
+
+	// Uploads whatever journal says is still missing, from the files it was queued from
+	public List<CompletableFuture<String>> resume(UploadJournal journal, ExportReport report){
+		List<CompletableFuture<String>> uploads = new ArrayList<CompletableFuture<String>>();
+		for (Map.Entry<String, File> pending : journal.pending().entrySet()){
+			if (pending.getValue().isFile()){
+				uploads.add(upload(pending.getValue(), pending.getKey(), report, journal));
+			} else {
+				CompletableFuture<String> missing = new CompletableFuture<String>();
+				missing.completeExceptionally(new FileNotFoundException(pending.getValue() + " no longer exists, so " + pending.getKey() + " can't be uploaded"));
+				uploads.add(missing);
+			}
+		}
+		return uploads;
+	}
+
+	public void put(File file, String key) throws ServiceException, IOException {
+		put(file, key, null);
+	}
+
+	public void put(File file, String key, StorageClient.PutProgress progress) throws ServiceException, IOException {
+		client.putObject(bucketName, key, file, contentType(key), MULTIPART_PART_SIZE, progress);
+	}
+
+	// progress (which may be null), stopped between parts once report is cancelled and with
+	// retries counted (and noted) in report
+	private static StorageClient.PutProgress putProgress(final StorageClient.PutProgress progress, final ExportReport report){
+		return new StorageClient.PutProgress(){
+			@Override
+			public String getUploadId(){
+				return progress != null ? progress.getUploadId() : null;
+			}
+
+			@Override
+			public void started(String uploadId){
+				if (progress != null) progress.started(uploadId);
+			}
+
+			@Override
+			public boolean isCancelled(){
+				return report.isCancelled();
+			}
+
+			@Override
+			public void retrying(String what, Exception cause, long backoffMs){
+				report.count("uploadRetries", 1);
+				report.error("Storage request \"" + what + "\" failed, retried after " + backoffMs + " ms", cause);
+			}
+		};
+	}
+
+	public String getBucketName(){
+		return bucketName;
+	}
+
+	// By file extension: the webpage, the report, or any registered atlas type
+	public static String contentType(String key){
+		String extension = key.substring(key.lastIndexOf('.') + 1).toLowerCase();
+		if (extension.equals("html")) return "text/html";
+		if (extension.equals("json")) return "application/json";
+		String contentType = AtlasEncoders.contentType(extension);
+		return contentType != null ? contentType : "application/octet-stream";
+	}
+
+	// Number of uploads skipped because the bucket already had identical content
+	public int getSkippedCount(){
+		return skipped.get();
+	}
+
+	// The ETag S3 gives a file uploaded by put(): its MD5, or for multipart uploads the
+	// MD5 of the concatenated part MD5s followed by -<number of parts>
+	public static String localETag(File file, long partSize) throws IOException, NoSuchAlgorithmException {
+		MessageDigest partDigest = MessageDigest.getInstance("MD5");
+		MessageDigest etagDigest = MessageDigest.getInstance("MD5");
+		byte[] buffer = new byte[1 << 16];
+		byte[] partMD5 = null;
+		int parts = 0; long inPart = 0;
+		try (InputStream in = new FileInputStream(file)) {
+			int read;
+			while ((read = in.read(buffer, 0, (int) Math.min(buffer.length, partSize - inPart))) > 0){
+				partDigest.update(buffer, 0, read);
+				inPart += read;
+				if (inPart == partSize){
+					partMD5 = partDigest.digest();
+					etagDigest.update(partMD5);
+					parts++; inPart = 0;
+				}
+			}
+		}
+		if (inPart > 0 || parts == 0){
+			partMD5 = partDigest.digest();
+			etagDigest.update(partMD5);
+			parts++;
+		}
+		// A single part means a plain PUT
+		return parts == 1 ? Hex.encodeHexString(partMD5) : Hex.encodeHexString(etagDigest.digest()) + "-" + parts;
+	}
+
+	private static String unquote(String etag){
+		return etag.startsWith("\"") && etag.endsWith("\"") && etag.length() > 1 ? etag.substring(1, etag.length() - 1) : etag;
+	}
+
+	public void shutdown(){
+		executor.shutdown();
+	}
+
+}
@@ -0,0 +1,55 @@
+package plugins.fantm.fpbioimagehelper;
+
+public abstract class VectorKernels {
+
+	// Data-parallel forms of two per-voxel loops, written with the Vector API
+	// (jdk.incubator.vector): z interpolation of 8 and 16-bit data, and blending ARGB rows
+	// into atlases. They give exactly the results of the plain loops (ZScaler's,
+	// ArgbConverter.blend), which VectorKernelsTest checks.
+	// The plugin targets Java 8, and the Vector API only exists from Java 16, in a module
+	// that has to be added to the JVM (--add-modules jdk.incubator.vector). So the kernels
+	// are in VectorApiKernels, in src-jdk16, compiled on its own and loaded by reflection.
+	// Where that fails, or with -Dfpb.vectorKernels=false, the plain loops are used.
+
+	public static final String PROPERTY = "fpb.vectorKernels";
+	static final String IMPLEMENTATION = "plugins.fantm.fpbioimagehelper.VectorApiKernels";
+
+	private static final VectorKernels KERNELS = load();
+
+	// The kernels, or null if this JVM can't run them
+	public static VectorKernels get(){
+		return KERNELS;
+	}
+
+	public static boolean isEnabled(){
+		return KERNELS != null;
+	}
+
+	private static VectorKernels load(){
+		if ("false".equalsIgnoreCase(System.getProperty(PROPERTY))) return null;
+		try {
+			Class.forName("jdk.incubator.vector.IntVector");
+			return (VectorKernels) Class.forName(IMPLEMENTATION).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			// A JVM older than the one that built src-jdk16 (or than 16), the module not added,
+			// or the plugin built without src-jdk16
+			return null;
+		}
+	}
+
+	// (1-frac)*a + frac*b, rounded, as ZScaler.interpolateScalar does it
+	public abstract void interpolate(byte[] a, byte[] b, byte[] out, double frac, boolean signed);
+
+	public abstract void interpolate(short[] a, short[] b, short[] out, double frac, boolean signed);
+
+	// Blends length pixels of src into dst, as ArgbConverter.blend does one pixel
+	public abstract void blend(int[] dst, int dstOffset, int[] src, int srcOffset, int length);
+
+	// The plain loop blend() stands in for
+	public static void blendScalar(int[] dst, int dstOffset, int[] src, int srcOffset, int length){
+		for (int i=0; i<length; i++){
+			dst[dstOffset + i] = ArgbConverter.blend(dst[dstOffset + i], src[srcOffset + i]);
+		}
+	}
+
+}
@@ -0,0 +1,40 @@
+package plugins.fantm.fpbioimagehelper;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+
+public interface Volume {
+
+	// What an export reads: a multi-channel time series, one z slice at a time. Either a
+	// Sequence already in memory (see of()) or frames staged to disk by MappedVolume. The
+	// names are Sequence's, so code written for one reads the same for the other.
+
+	int getSizeX();
+	int getSizeY();
+	int getSizeZ();
+	int getSizeT();
+	int getSizeC();
+	DataType getDataType_();
+
+	// Slice z of frame t. MappedVolume makes a new copy each time, so hold on to it rather
+	// than asking again.
+	IcyBufferedImage getImage(int t, int z);
+
+	// The whole sequence, or null if the volume can only be read a slice at a time
+	Sequence getSequence();
+
+	public static Volume of(final Sequence seq){
+		return new Volume(){
+			@Override public int getSizeX(){ return seq.getSizeX(); }
+			@Override public int getSizeY(){ return seq.getSizeY(); }
+			@Override public int getSizeZ(){ return seq.getSizeZ(); }
+			@Override public int getSizeT(){ return seq.getSizeT(); }
+			@Override public int getSizeC(){ return seq.getSizeC(); }
+			@Override public DataType getDataType_(){ return seq.getDataType_(); }
+			@Override public IcyBufferedImage getImage(int t, int z){ return seq.getImage(t, z); }
+			@Override public Sequence getSequence(){ return seq; }
+		};
+	}
+
+}
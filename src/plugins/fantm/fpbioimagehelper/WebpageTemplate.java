@@ -0,0 +1,93 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class WebpageTemplate {
+
+	// A webpage template split into literal text and named placeholders (templateXxx),
+	// so a page is rendered by appending each segment once instead of searching the
+	// whole text for every placeholder.
+
+	public static final String DEFAULT_RESOURCE = "/templateWebpage.html";
+
+	private static final Pattern PLACEHOLDER = Pattern.compile("template[A-Z][A-Za-z]*");
+
+	private static volatile WebpageTemplate defaultTemplate;
+
+	// Literal text before each placeholder, plus whatever follows the last one
+	private final String[] literals;
+	private final String[] placeholders;
+	private final int literalLength;
+
+	public WebpageTemplate(String text){
+		List<String> literalList = new ArrayList<String>();
+		List<String> placeholderList = new ArrayList<String>();
+		Matcher matcher = PLACEHOLDER.matcher(text);
+		int last = 0;
+		while (matcher.find()){
+			literalList.add(text.substring(last, matcher.start()));
+			placeholderList.add(matcher.group());
+			last = matcher.end();
+		}
+		literalList.add(text.substring(last));
+
+		literals = literalList.toArray(new String[literalList.size()]);
+		placeholders = placeholderList.toArray(new String[placeholderList.size()]);
+		int length = 0;
+		for (String literal : literals) length += literal.length();
+		literalLength = length;
+	}
+
+	// The plugin's own template, read and parsed the first time it is needed
+	public static WebpageTemplate getDefault() throws IOException {
+		WebpageTemplate template = defaultTemplate;
+		if (template == null){
+			synchronized (WebpageTemplate.class){
+				template = defaultTemplate;
+				if (template == null){
+					template = fromResource(DEFAULT_RESOURCE);
+					defaultTemplate = template;
+				}
+			}
+		}
+		return template;
+	}
+
+	public static WebpageTemplate fromResource(String path) throws IOException {
+		InputStream in = WebpageTemplate.class.getResourceAsStream(path);
+		if (in == null) throw new IOException("Template not found: " + path);
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1){
+				bytes.write(buffer, 0, read);
+			}
+			return new WebpageTemplate(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+		} finally {
+			in.close();
+		}
+	}
+
+	// Every placeholder in the template must have a value
+	public String render(Map<String, String> values){
+		StringBuilder page = new StringBuilder(literalLength + 64 * placeholders.length);
+		for (int i=0; i<placeholders.length; i++){
+			page.append(literals[i]);
+			String value = values.get(placeholders[i]);
+			if (value == null) throw new IllegalArgumentException("No value for " + placeholders[i]);
+			page.append(value);
+		}
+		page.append(literals[placeholders.length]);
+		return page.toString();
+	}
+
+}
@@ -0,0 +1,142 @@
+package plugins.fantm.fpbioimagehelper;
+
+import java.lang.reflect.Array;
+import java.util.stream.IntStream;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+
+public class ZScaler {
+
+	// Resamples one frame of a sequence in z with linear interpolation.
+	// Works straight on each slice's primitive arrays (any Icy data type), and
+	// builds the output slices in parallel.
+	public static Sequence scaleZ(final Sequence seq, final int t, final double scaleFactor){
+		final int newDepth = newDepth(seq.getSizeZ(), scaleFactor);
+
+		final IcyBufferedImage[] newSlices = new IcyBufferedImage[newDepth];
+		IntStream.range(0, newDepth).parallel().forEach(newZ ->
+			newSlices[newZ] = interpolateSlice(seq, t, (double) newZ / scaleFactor));
+
+		Sequence output = new Sequence();
+		output.beginUpdate();
+		try {
+			for (int z=0; z<newDepth; z++){
+				output.addImage(newSlices[z]);
+			}
+		} finally {
+			output.endUpdate();
+		}
+		return output;
+	}
+
+	public static Sequence scaleZ(Sequence seq, double scaleFactor){
+		return scaleZ(seq, 0, scaleFactor);
+	}
+
+	public static int newDepth(int oldDepth, double scaleFactor){
+		return Math.max(1, (int) Math.ceil((double) oldDepth * scaleFactor));
+	}
+
+	// Lower of the two old slices that (fractional) z position oldZ falls between
+	public static int lowerSlice(double oldZ, int oldDepth){
+		return Math.max(0, Math.min((int) Math.floor(oldZ), oldDepth - 2));
+	}
+
+	// Weight of the upper slice at position oldZ
+	public static double upperWeight(double oldZ, int oldDepth){
+		if (oldDepth == 1) return 0;
+		return Math.min(Math.max(oldZ - lowerSlice(oldZ, oldDepth), 0.0), 1.0);
+	}
+
+	// Builds the slice found at (fractional) z position oldZ of frame t
+	public static IcyBufferedImage interpolateSlice(Sequence seq, int t, double oldZ){
+		int oldDepth = seq.getSizeZ();
+		int zA = lowerSlice(oldZ, oldDepth);
+		int zB = Math.min(zA + 1, oldDepth - 1);
+
+		return interpolate(seq.getImage(t, zA), seq.getImage(t, zB), upperWeight(oldZ, oldDepth));
+	}
+
+	// New image holding (1-frac)*a + frac*b, channel by channel
+	public static IcyBufferedImage interpolate(IcyBufferedImage a, IcyBufferedImage b, double frac){
+		DataType type = a.getDataType_();
+		IcyBufferedImage out = new IcyBufferedImage(a.getSizeX(), a.getSizeY(), a.getSizeC(), type);
+		for (int c=0; c<a.getSizeC(); c++){
+			interpolate(a.getDataXY(c), b.getDataXY(c), out.getDataXY(c), frac, type.isSigned());
+		}
+		out.dataChanged();
+		return out;
+	}
+
+	public static void interpolate(Object a, Object b, Object out, double frac, boolean signed){
+		interpolate(a, b, out, frac, signed, VectorKernels.isEnabled());
+	}
+
+	// As above, choosing whether 8 and 16-bit data go through VectorKernels (which give the
+	// same results) if this JVM can run them
+	public static void interpolate(Object a, Object b, Object out, double frac, boolean signed, boolean vectorKernels){
+		if (frac == 0){
+			System.arraycopy(a, 0, out, 0, Array.getLength(a));
+			return;
+		}
+
+		VectorKernels kernels = vectorKernels ? VectorKernels.get() : null;
+		if (a instanceof byte[]){
+			if (kernels != null) kernels.interpolate((byte[]) a, (byte[]) b, (byte[]) out, frac, signed);
+			else interpolateScalar((byte[]) a, (byte[]) b, (byte[]) out, frac, signed);
+		} else if (a instanceof short[]){
+			if (kernels != null) kernels.interpolate((short[]) a, (short[]) b, (short[]) out, frac, signed);
+			else interpolateScalar((short[]) a, (short[]) b, (short[]) out, frac, signed);
+		} else if (a instanceof int[]){
+			interpolate((int[]) a, (int[]) b, (int[]) out, frac, signed);
+		} else if (a instanceof float[]){
+			interpolate((float[]) a, (float[]) b, (float[]) out, frac);
+		} else if (a instanceof double[]){
+			interpolate((double[]) a, (double[]) b, (double[]) out, frac);
+		} else {
+			throw new IllegalArgumentException("Unsupported data type for z-scaling: " + a.getClass().getSimpleName());
+		}
+	}
+
+	// The interpolated value always lies between the two inputs, so no clamping is needed
+
+	static void interpolateScalar(byte[] a, byte[] b, byte[] out, double frac, boolean signed){
+		int mask = signed ? 0xFFFFFFFF : 0xFF;
+		for (int i=0; i<out.length; i++){
+			int va = a[i] & mask; int vb = b[i] & mask;
+			out[i] = (byte) Math.round(va + frac * (vb - va));
+		}
+	}
+
+	static void interpolateScalar(short[] a, short[] b, short[] out, double frac, boolean signed){
+		int mask = signed ? 0xFFFFFFFF : 0xFFFF;
+		for (int i=0; i<out.length; i++){
+			int va = a[i] & mask; int vb = b[i] & mask;
+			out[i] = (short) Math.round(va + frac * (vb - va));
+		}
+	}
+
+	private static void interpolate(int[] a, int[] b, int[] out, double frac, boolean signed){
+		long mask = signed ? 0xFFFFFFFFFFFFFFFFL : 0xFFFFFFFFL;
+		for (int i=0; i<out.length; i++){
+			long va = a[i] & mask; long vb = b[i] & mask;
+			out[i] = (int) Math.round(va + frac * (vb - va));
+		}
+	}
+
+	private static void interpolate(float[] a, float[] b, float[] out, double frac){
+		float f = (float) frac;
+		for (int i=0; i<out.length; i++){
+			out[i] = a[i] + f * (b[i] - a[i]);
+		}
+	}
+
+	private static void interpolate(double[] a, double[] b, double[] out, double frac){
+		for (int i=0; i<out.length; i++){
+			out[i] = a[i] + frac * (b[i] - a[i]);
+		}
+	}
+
+}
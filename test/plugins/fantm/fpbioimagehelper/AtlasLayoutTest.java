@@ -0,0 +1,122 @@
+package plugins.fantm.fpbioimagehelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class AtlasLayoutTest {
+
+	// Both packings have to put every slice inside its atlas without overlapping another,
+	// and the tight one must never need more pixels than the power of 2 one.
+
+	private static final int[][] SIZES = {
+		{1, 1, 1}, {2, 3, 5}, {100, 100, 1}, {256, 256, 64}, {255, 257, 63},
+		{500, 120, 37}, {120, 500, 37}, {64, 64, 300}, {33, 17, 1000}
+	};
+
+	@Test
+	public void ceil2MatchesDoubling(){
+		for (int x=-2; x<=70000; x++){
+			int expected = 1;
+			while (expected < x) expected *= 2;
+			assertEquals("ceil2(" + x + ")", expected, AtlasLayout.ceil2(x));
+		}
+	}
+
+	@Test
+	public void powerOfTwoLayout(){
+		AtlasLayout layout = new AtlasLayout(200, 100, 60);
+		assertEquals(AtlasLayout.Packing.POWER_OF_TWO, layout.packing);
+		assertEquals(256, layout.paddedSliceWidth);
+		assertEquals(128, layout.paddedSliceHeight);
+		assertEquals(28, layout.xOffset);
+		assertEquals(14, layout.yOffset);
+		assertEquals(8, layout.slicesPerAtlas);
+		// A 256x1024 column, squared up
+		assertEquals(512, layout.atlasWidth);
+		assertEquals(512, layout.atlasHeight);
+		assertEquals(2, layout.slicesPerRow);
+		// Slice 0 goes after the 2 padding slices at the start: in atlas 2, top left
+		assertEquals(2, layout.atlasNumber(0));
+		assertEquals(28, layout.xStartPixel(0));
+		assertEquals(512 - 128 + 14, layout.yStartPixel(0));
+	}
+
+	@Test
+	public void powerOfTwoSlicesFitWithoutOverlap(){
+		for (int[] size : SIZES){
+			AtlasLayout layout = new AtlasLayout(size[0], size[1], size[2]);
+			assertEquals(1, Integer.bitCount(layout.atlasWidth));
+			assertEquals(1, Integer.bitCount(layout.atlasHeight));
+			checkSlices(layout);
+		}
+	}
+
+	@Test
+	public void tightSlicesFitWithoutOverlap(){
+		for (int[] size : SIZES){
+			for (int atlases : new int[] {1, 3, AtlasLayout.DEFAULT_NUMBER_OF_ATLASES, 16}){
+				AtlasLayout layout = AtlasLayout.tight(size[0], size[1], size[2], atlases, 1 << 16);
+				assertEquals(AtlasLayout.Packing.TIGHT, layout.packing);
+				assertEquals(0, layout.xOffset);
+				assertEquals(0, layout.yOffset);
+				checkSlices(layout);
+			}
+		}
+	}
+
+	@Test
+	public void tightIsNoLargerThanPowerOfTwo(){
+		for (int[] size : SIZES){
+			AtlasLayout pow2 = new AtlasLayout(size[0], size[1], size[2]);
+			AtlasLayout tight = AtlasLayout.tight(size[0], size[1], size[2], AtlasLayout.DEFAULT_NUMBER_OF_ATLASES, 1 << 16);
+			assertTrue(size[0] + "x" + size[1] + "x" + size[2], tight.totalPixels() <= pow2.totalPixels());
+		}
+	}
+
+	@Test
+	public void tightRespectsMaxAtlasSize(){
+		AtlasLayout layout = AtlasLayout.tight(300, 200, 200, 16, 1024);
+		assertTrue(layout.atlasWidth <= 1024);
+		assertTrue(layout.atlasHeight <= 1024);
+		checkSlices(layout);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void tightFailsWhenSlicesCantFit(){
+		AtlasLayout.tight(3000, 3000, 100, 8, 4096);
+	}
+
+	@Test
+	public void javaScriptKeysAreQuoted(){
+		String js = AtlasLayout.tight(10, 20, 30, 4, 4096).toJavaScript();
+		assertTrue(js, js.startsWith("{\"packing\": \"tight\""));
+		assertTrue(js, js.matches("\\{(\"[a-zA-Z]+\": (\"[a-z0-9]+\"|\\d+)(, |\\}$))+"));
+	}
+
+	// Every slice has to land inside its atlas, and no two slices in the same atlas may overlap
+	private static void checkSlices(AtlasLayout layout){
+		String name = layout.packing + " " + layout.sliceWidth + "x" + layout.sliceHeight + "x" + layout.numberOfImages
+				+ " over " + layout.numberOfAtlases;
+		assertTrue(name, (long) layout.slicesPerAtlas * layout.numberOfAtlases >= layout.numberOfImages + layout.zPadding);
+
+		Set<Long> cells = new HashSet<Long>();
+		for (int slice=0; slice<layout.numberOfImages; slice++){
+			int atlas = layout.atlasNumber(slice);
+			int x = layout.xStartPixel(slice);
+			int y = layout.yStartPixel(slice);
+			assertTrue(name + " slice " + slice, atlas >= 0 && atlas < layout.numberOfAtlases);
+			assertTrue(name + " slice " + slice, x >= 0 && x + layout.sliceWidth <= layout.atlasWidth);
+			assertTrue(name + " slice " + slice, y >= 0 && y + layout.sliceHeight <= layout.atlasHeight);
+			// Cells are on a grid, so slices overlap only if they share a cell
+			int column = (x - layout.xOffset) / layout.paddedSliceWidth;
+			int row = (y - layout.yOffset) / layout.paddedSliceHeight;
+			assertTrue(name + " slice " + slice, cells.add(((long) atlas << 40) | ((long) row << 20) | column));
+		}
+	}
+
+}
@@ -0,0 +1,63 @@
+package plugins.fantm.fpbioimagehelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BrickGridTest {
+
+	// The bricks of a z scaled volume have to hold the slices of the whole volume's resample
+	// between them, each one once, interpolated from the same source slices.
+
+	private static final int[] DEPTHS = {1, 2, 7, 64, 101, 300};
+	private static final double[] SCALES = {0.9, 0.77, 0.5, 0.3, 0.1, 0.05};
+	private static final int[] BRICK_SIZES = {1, 2, 5, 16, 64};
+
+	@Test
+	public void bricksTileTheWholeResample(){
+		for (int depth : DEPTHS){
+			for (double scale : SCALES){
+				for (int brickSize : BRICK_SIZES){
+					String name = depth + " slices at " + scale + " in bricks of " + brickSize;
+					BrickGrid grid = grid(depth, scale, brickSize);
+					int next = 0;
+					for (BrickGrid.Brick brick : grid.getBricks()){
+						if (brick.ix > 0 || brick.iy > 0) continue;
+						assertEquals(name, next, brick.outputZ);
+						assertTrue(name, brick.depth() >= 1);
+						next += brick.depth();
+					}
+					assertEquals(name, ZScaler.newDepth(depth, scale), next);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void bricksInterpolateLikeTheWholeVolume(){
+		for (int depth : DEPTHS){
+			for (double scale : SCALES){
+				for (int brickSize : BRICK_SIZES){
+					String name = depth + " slices at " + scale + " in bricks of " + brickSize;
+					for (BrickGrid.Brick brick : grid(depth, scale, brickSize).getBricks()){
+						for (int z=0; z<brick.depth(); z++){
+							double oldZ = (brick.outputZ + z) / scale;
+							double expected = ZScaler.lowerSlice(oldZ, depth) + ZScaler.upperWeight(oldZ, depth);
+							double local = brick.sourceZ(z);
+							double actual = brick.z + ZScaler.lowerSlice(local, brick.readDepth()) + ZScaler.upperWeight(local, brick.readDepth());
+							assertEquals(name + ", slice " + (brick.outputZ + z), expected, actual, 1e-9);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static BrickGrid grid(int depth, double scale, int brickSize){
+		ExportOptions options = new ExportOptions();
+		options.scaleZ = scale;
+		return new BrickGrid(8, 8, depth, brickSize, options);
+	}
+
+}
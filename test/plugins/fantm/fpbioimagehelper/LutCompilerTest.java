@@ -0,0 +1,80 @@
+package plugins.fantm.fpbioimagehelper;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import icy.image.colormap.IcyColorMap;
+import icy.math.Scaler;
+
+public class LutCompilerTest {
+
+	// Every entry of a compiled table has to be what scaling that value per voxel gives,
+	// for 8 and 16-bit data, signed or not, including windows that clip at either end and
+	// outputs beyond the colormap.
+
+	private static final int[] COLORMAP = new int[IcyColorMap.SIZE];
+	static {
+		Random random = new Random(4);
+		for (int i=0; i<COLORMAP.length; i++) COLORMAP[i] = random.nextInt();
+	}
+
+	@Test
+	public void unsigned8BitTables(){
+		checkTables(new Scaler(0, 255, 0, IcyColorMap.MAX_INDEX, true), 8, false);
+		checkTables(new Scaler(20, 200, 0, IcyColorMap.MAX_INDEX, true), 8, false);
+		checkTables(new Scaler(0, 255, -50, 400, true), 8, false);
+	}
+
+	@Test
+	public void signed8BitTables(){
+		checkTables(new Scaler(-128, 127, 0, IcyColorMap.MAX_INDEX, true), 8, true);
+		checkTables(new Scaler(-10, 90, 0, IcyColorMap.MAX_INDEX, true), 8, true);
+	}
+
+	@Test
+	public void unsigned16BitTables(){
+		checkTables(new Scaler(0, 65535, 0, IcyColorMap.MAX_INDEX, true), 16, false);
+		checkTables(new Scaler(100, 40000, 0, IcyColorMap.MAX_INDEX, true), 16, false);
+	}
+
+	@Test
+	public void signed16BitTables(){
+		checkTables(new Scaler(-32768, 32767, 0, IcyColorMap.MAX_INDEX, true), 16, true);
+		checkTables(new Scaler(-1000, 3000.5, 0, IcyColorMap.MAX_INDEX, true), 16, true);
+	}
+
+	@Test
+	public void indexClampsToTheColormap(){
+		assertEquals(0, LutCompiler.index(Double.NaN));
+		assertEquals(0, LutCompiler.index(Double.NEGATIVE_INFINITY));
+		assertEquals(0, LutCompiler.index(-0.5));
+		assertEquals(0, LutCompiler.index(0));
+		assertEquals(3, LutCompiler.index(3.99));
+		assertEquals(IcyColorMap.MAX_INDEX - 1, LutCompiler.index(IcyColorMap.MAX_INDEX - 0.5));
+		assertEquals(IcyColorMap.MAX_INDEX, LutCompiler.index(IcyColorMap.MAX_INDEX));
+		assertEquals(IcyColorMap.MAX_INDEX, LutCompiler.index(1e12));
+		assertEquals(IcyColorMap.MAX_INDEX, LutCompiler.index(Double.POSITIVE_INFINITY));
+	}
+
+	// Tables are indexed by the raw bits, so entry i is for the value those bits hold
+	private static void checkTables(Scaler scaler, int bits, boolean signed){
+		int[] argb = LutCompiler.argbTable(scaler, COLORMAP, bits, signed);
+		byte[] indices = LutCompiler.indexTable(scaler, bits, signed);
+		assertEquals(1 << bits, argb.length);
+		assertEquals(1 << bits, indices.length);
+
+		int min = signed ? -(1 << (bits - 1)) : 0;
+		int max = signed ? (1 << (bits - 1)) - 1 : (1 << bits) - 1;
+		int mask = (1 << bits) - 1;
+		for (int value=min; value<=max; value++){
+			int index = LutCompiler.index(scaler.scale(value));
+			String where = bits + "-bit " + (signed ? "signed " : "") + value;
+			assertEquals(where, COLORMAP[index], argb[value & mask]);
+			assertEquals(where, index, indices[value & mask] & 0xFF);
+		}
+	}
+
+}
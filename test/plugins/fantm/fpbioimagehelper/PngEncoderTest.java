@@ -0,0 +1,83 @@
+package plugins.fantm.fpbioimagehelper;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class PngEncoderTest {
+
+	// Every filter, at the extreme deflate levels, has to give back the exact pixels when
+	// the PNG is read by ImageIO. The images mix noise (where the filters disagree most)
+	// with smooth gradients, and have odd sizes so no row lines up with anything.
+
+	private static final int WIDTH = 37;
+	private static final int HEIGHT = 23;
+
+	@Test
+	public void argbRoundTrips() throws IOException {
+		BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+		int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		Random random = new Random(1);
+		for (int i=0; i<pixels.length; i++){
+			pixels[i] = i % 3 == 0 ? random.nextInt() : ArgbConverter.pack((i % 7) / 6f, (i % WIDTH) / (WIDTH - 1f), (i / WIDTH) / (HEIGHT - 1f), 0.5f);
+		}
+		checkAllFilters(image);
+	}
+
+	@Test
+	public void grayRoundTrips() throws IOException {
+		BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_GRAY);
+		fill(((DataBufferByte) image.getRaster().getDataBuffer()).getData(), 256);
+		checkAllFilters(image);
+	}
+
+	@Test
+	public void paletteRoundTrips() throws IOException {
+		// Translucent entries, so the tRNS chunk is written too
+		int[] colours = new int[16];
+		Random random = new Random(2);
+		for (int i=0; i<colours.length; i++) colours[i] = random.nextInt();
+		colours[colours.length - 1] |= 0xFF000000;
+		IndexColorModel palette = new IndexColorModel(8, colours.length, colours, 0, true, -1, DataBuffer.TYPE_BYTE);
+		BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_INDEXED, palette);
+		fill(((DataBufferByte) image.getRaster().getDataBuffer()).getData(), colours.length);
+		checkAllFilters(image);
+	}
+
+	private static void fill(byte[] pixels, int values){
+		Random random = new Random(3);
+		for (int i=0; i<pixels.length; i++){
+			pixels[i] = (byte) (i % 3 == 0 ? random.nextInt(values) : (i % WIDTH + i / WIDTH) % values);
+		}
+	}
+
+	private static void checkAllFilters(BufferedImage image) throws IOException {
+		for (PngEncoder.Filter filter : PngEncoder.Filter.values()){
+			for (int level : new int[] {1, 9}){
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				new PngEncoder(level, filter).write(image, out);
+				BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+				assertEquals(image.getWidth(), decoded.getWidth());
+				assertEquals(image.getHeight(), decoded.getHeight());
+				for (int y=0; y<image.getHeight(); y++){
+					for (int x=0; x<image.getWidth(); x++){
+						assertEquals(filter + " level " + level + " at " + x + "," + y, image.getRGB(x, y), decoded.getRGB(x, y));
+					}
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+package plugins.fantm.fpbioimagehelper;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class VectorKernelsTest {
+
+	// The Vector API kernels have to give exactly what the plain loops give, rounding ties
+	// included. They only load on Java 16+ with jdk.incubator.vector added (as the jdk16
+	// build profile runs the tests), so elsewhere these are skipped.
+
+	private static final double[] FRACS;
+	static {
+		Random random = new Random(5);
+		FRACS = new double[24];
+		FRACS[0] = 0.5; FRACS[1] = 0.25; FRACS[2] = 1.0 / 3; FRACS[3] = 1e-9; FRACS[4] = 1 - 1e-12;
+		FRACS[5] = Math.nextDown(0.5); FRACS[6] = 1.0; FRACS[7] = 0.37;
+		for (int i=8; i<FRACS.length; i++) FRACS[i] = random.nextDouble();
+	}
+
+	private VectorKernels kernels;
+
+	@Before
+	public void loadKernels(){
+		kernels = VectorKernels.get();
+		Assume.assumeNotNull(kernels);
+	}
+
+	@Test
+	public void blendsEveryBytePair(){
+		// Each byte of the pixel on its own, for every pair of values
+		for (int p=0; p<256; p++){
+			int[] dst = new int[256]; int[] src = new int[256];
+			for (int q=0; q<256; q++){
+				dst[q] = p * 0x01010101; src[q] = q * 0x01010101;
+			}
+			checkBlend(dst, 0, src, 0, 256);
+		}
+	}
+
+	@Test
+	public void blendsRandomRows(){
+		Random random = new Random(6);
+		for (int length=0; length<70; length++){
+			for (int offset=0; offset<4; offset++){
+				int[] dst = new int[length + 7]; int[] src = new int[length + 7];
+				for (int i=0; i<dst.length; i++){
+					dst[i] = random.nextInt(); src[i] = random.nextInt();
+				}
+				checkBlend(dst, offset, src, 3 - offset, length);
+			}
+		}
+	}
+
+	@Test
+	public void interpolatesEvery8BitPair(){
+		// Every pair of values, plus a tail that isn't a whole vector
+		int n = 256 * 256 + 5;
+		byte[] a = new byte[n]; byte[] b = new byte[n];
+		for (int i=0; i<n; i++){
+			a[i] = (byte) (i >> 8); b[i] = (byte) i;
+		}
+		for (double frac : FRACS){
+			for (boolean signed : new boolean[] {false, true}){
+				byte[] expected = new byte[n]; byte[] out = new byte[n];
+				ZScaler.interpolateScalar(a, b, expected, frac, signed);
+				kernels.interpolate(a, b, out, frac, signed);
+				assertArrayEquals("frac " + frac + (signed ? " signed" : ""), expected, out);
+			}
+		}
+	}
+
+	@Test
+	public void interpolates16Bit(){
+		Random random = new Random(7);
+		int n = 4099;
+		short[] a = new short[n]; short[] b = new short[n];
+		for (int i=0; i<n; i++){
+			a[i] = (short) random.nextInt(); b[i] = (short) random.nextInt();
+		}
+		// The ends of the range, and odd differences (ties at 0.5) of both signs
+		a[0] = 0; b[0] = (short) 0xFFFF; a[1] = (short) 0xFFFF; b[1] = 0;
+		a[2] = Short.MIN_VALUE; b[2] = Short.MAX_VALUE; a[3] = Short.MAX_VALUE; b[3] = Short.MIN_VALUE;
+		a[4] = -3; b[4] = -2; a[5] = -2; b[5] = -3; a[6] = 2; b[6] = 3; a[7] = -1; b[7] = 0;
+		for (double frac : FRACS){
+			for (boolean signed : new boolean[] {false, true}){
+				short[] expected = new short[n]; short[] out = new short[n];
+				ZScaler.interpolateScalar(a, b, expected, frac, signed);
+				kernels.interpolate(a, b, out, frac, signed);
+				assertArrayEquals("frac " + frac + (signed ? " signed" : ""), expected, out);
+			}
+		}
+	}
+
+	@Test
+	public void zScalerUsesTheKernels(){
+		Random random = new Random(8);
+		short[] a = new short[1000]; short[] b = new short[1000];
+		for (int i=0; i<a.length; i++){
+			a[i] = (short) random.nextInt(); b[i] = (short) random.nextInt();
+		}
+		short[] plain = new short[a.length]; short[] vector = new short[a.length];
+		ZScaler.interpolate(a, b, plain, 0.37, false, false);
+		ZScaler.interpolate(a, b, vector, 0.37, false, true);
+		assertArrayEquals(plain, vector);
+	}
+
+	private void checkBlend(int[] dst, int dstOffset, int[] src, int srcOffset, int length){
+		int[] expected = dst.clone();
+		VectorKernels.blendScalar(expected, dstOffset, src, srcOffset, length);
+		kernels.blend(dst, dstOffset, src, srcOffset, length);
+		assertArrayEquals(expected, dst);
+	}
+
+}
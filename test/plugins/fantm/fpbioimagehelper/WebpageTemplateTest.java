@@ -0,0 +1,88 @@
+package plugins.fantm.fpbioimagehelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class WebpageTemplateTest {
+
+	// The parsed template has to render what replacing each placeholder in the raw text
+	// (as the plugin used to) gives, for the plugin's own template and for edge cases.
+
+	@Test
+	public void rendersDefaultTemplateLikeReplacing() throws IOException {
+		String text = read(WebpageTemplate.DEFAULT_RESOURCE);
+		Map<String, String> values = new HashMap<String, String>();
+		Matcher matcher = Pattern.compile("template[A-Z][A-Za-z]*").matcher(text);
+		while (matcher.find()){
+			values.put(matcher.group(), "<" + matcher.group().toLowerCase() + ">");
+		}
+		assertFalse(values.isEmpty());
+
+		String expected = text;
+		for (Map.Entry<String, String> value : values.entrySet()){
+			expected = expected.replace(value.getKey(), value.getValue());
+		}
+		String page = WebpageTemplate.getDefault().render(values);
+		assertEquals(expected, page);
+		assertFalse(page.matches("(?s).*template[A-Z].*"));
+	}
+
+	@Test
+	public void defaultTemplateIsParsedOnce() throws IOException {
+		assertSame(WebpageTemplate.getDefault(), WebpageTemplate.getDefault());
+	}
+
+	@Test
+	public void placeholdersAtTheEnds(){
+		WebpageTemplate template = new WebpageTemplate("templateA-templateB(templateC)templateA");
+		Map<String, String> values = new HashMap<String, String>();
+		values.put("templateA", "1");
+		values.put("templateB", "2");
+		values.put("templateC", "3");
+		assertEquals("1-2(3)1", template.render(values));
+	}
+
+	@Test
+	public void valuesAreNotExpandedAgain(){
+		WebpageTemplate template = new WebpageTemplate("var x = templateValue;");
+		Map<String, String> values = new HashMap<String, String>();
+		values.put("templateValue", "'templateValue'");
+		assertEquals("var x = 'templateValue';", template.render(values));
+	}
+
+	@Test
+	public void textWithoutPlaceholders(){
+		assertEquals("<html></html>", new WebpageTemplate("<html></html>").render(new HashMap<String, String>()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void missingValueFails(){
+		new WebpageTemplate("a templateMissing b").render(new HashMap<String, String>());
+	}
+
+	private static String read(String resource) throws IOException {
+		InputStream in = WebpageTemplateTest.class.getResourceAsStream(resource);
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) bytes.write(buffer, 0, read);
+			return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+		} finally {
+			in.close();
+		}
+	}
+
+}